@@ -102,6 +102,45 @@ public abstract class AbstractShibbolethServlet extends HttpServlet {
 		return null;
 	}
 
+	/**
+	 * Get an optional integer parameter from {@link ServletContext}.
+	 * 
+	 * @param name
+	 *            name of parameter
+	 * @param defaultValue
+	 *            value to return if the parameter is missing or set to the
+	 *            empty string
+	 * @return value of parameter, or {@code defaultValue}
+	 * @throws ServletException
+	 *             if the parameter is present but not an integer
+	 */
+	protected int getOptionalIntContextParameter(final String name,
+			final int defaultValue) throws ServletException {
+		final String value = getOptionalContextParameter(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (final NumberFormatException e) {
+			throw new ServletException("context parameter " + name
+					+ " is not an integer: " + value);
+		}
+	}
+
+	/**
+	 * Gets the interval at which the {@code loginstats_topk} table is
+	 * recomputed from the raw {@code loginstats}. Shared between the servlet
+	 * that maintains the table and the servlet that reads it, so that both
+	 * agree on whether it is in use at all.
+	 * 
+	 * @return update interval in minutes, or 0 if the table isn't used
+	 * @throws ServletException
+	 *             if the parameter is present but not an integer
+	 */
+	protected int getRankingTableInterval() throws ServletException {
+		return getOptionalIntContextParameter("discovery.ranking.interval", 0);
+	}
+
 	/**
 	 * Opens a database connection according to the configuration in the
 	 * {@link ServletContext}.
@@ -192,12 +231,35 @@ public abstract class AbstractShibbolethServlet extends HttpServlet {
 	 * @return a {@link File} pointing to the logo cache directory
 	 */
 	protected File getLogoCacheDir() {
-		final File tempdir = (File) getServletContext().getAttribute(
-				ServletContext.TEMPDIR);
-		final File logoCache = new File(tempdir, "logos");
+		final File logoCache = new File(getTempDir(), "logos");
 		return logoCache;
 	}
 
+	/**
+	 * Get the location of the IdP ranking snapshot, in the servlet container's
+	 * temp directory.
+	 * 
+	 * @return a {@link File} pointing to the ranking snapshot
+	 */
+	protected File getRankingSnapshotFile() {
+		return new File(getTempDir(), "ranking.bin");
+	}
+
+	/**
+	 * Get the directory holding the parsed metadata snapshots of all metadata
+	 * sources, in the servlet container's temp directory.
+	 * 
+	 * @return a {@link File} pointing to the metadata snapshot directory
+	 */
+	protected File getMetadataSnapshotDir() {
+		return new File(getTempDir(), "metadata");
+	}
+
+	/** Gets the servlet container's temp directory for this webapp. */
+	private File getTempDir() {
+		return (File) getServletContext().getAttribute(ServletContext.TEMPDIR);
+	}
+
 	/**
 	 * Sets the cache-control headers to allow caching.
 	 * 
@@ -438,8 +500,8 @@ public abstract class AbstractShibbolethServlet extends HttpServlet {
 		final String target = req.getParameter("target");
 		final String param = req.getParameter("returnIDParam");
 		final String passive = req.getParameter("isPassive");
-		return new LoginParams(meta, spEntityID, ret, target, param, passive,
-				languages);
+		return new LoginParams(meta != null ? meta.getSnapshot() : null,
+				spEntityID, ret, target, param, passive, languages);
 	}
 
 	protected MetadataUpdateThread getMetadataUpdateThread() {
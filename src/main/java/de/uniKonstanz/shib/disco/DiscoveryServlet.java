@@ -1,11 +1,14 @@
 package de.uniKonstanz.shib.disco;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -16,7 +19,13 @@ import javax.servlet.http.HttpServletResponse;
 import de.uniKonstanz.shib.disco.loginlogger.IdPRanking;
 import de.uniKonstanz.shib.disco.loginlogger.LoginParams;
 import de.uniKonstanz.shib.disco.loginlogger.LoginServlet;
+import de.uniKonstanz.shib.disco.loginlogger.RankingSnapshotThread;
+import de.uniKonstanz.shib.disco.logo.InlineLogos;
+import de.uniKonstanz.shib.disco.logo.LogoSize;
+import de.uniKonstanz.shib.disco.logo.LogosServlet;
+import de.uniKonstanz.shib.disco.metadata.FilterRules;
 import de.uniKonstanz.shib.disco.metadata.IdPMeta;
+import de.uniKonstanz.shib.disco.metadata.MetadataSnapshot;
 import de.uniKonstanz.shib.disco.metadata.MetadataUpdateThread;
 import de.uniKonstanz.shib.disco.util.ConnectionPool;
 
@@ -47,14 +56,21 @@ import de.uniKonstanz.shib.disco.util.ConnectionPool;
 public class DiscoveryServlet extends AbstractShibbolethServlet {
 	private static final Logger LOGGER = Logger
 			.getLogger(DiscoveryServlet.class.getCanonicalName());
+	/**
+	 * Width at which logos are displayed, for choosing between the
+	 * {@link LogoSize}s. Has to match the image width in {@code disco.css}.
+	 */
+	private static final String LOGO_DISPLAY_WIDTH = "20ex";
 	private MetadataUpdateThread metaUpdate;
 	private ConnectionPool db;
-	private String metadataURL;
 	private String header1;
 	private String header2;
 	private String footer;
 	private IdPRanking ranking;
+	private RankingSnapshotThread rankingSnapshot;
 	private int numTopIdPs;
+	private int numInlineLogos;
+	private InlineLogos inlineLogos;
 	private String jsHeader;
 	private String searchHeader;
 	private String wayf;
@@ -63,9 +79,13 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 	@Override
 	public void init() throws ServletException {
 		super.init();
-		metadataURL = getContextParameter("shibboleth.metadata.url");
+		final List<String> metadataURLs = Arrays.asList(getContextParameter(
+				"shibboleth.metadata.url").trim().split("\\s+"));
 		numTopIdPs = Integer
 				.parseInt(getContextParameter("discovery.friendly.idps"));
+		numInlineLogos = getOptionalIntContextParameter(
+				"discovery.logos.inline", 0);
+		inlineLogos = new InlineLogos(getLogoCacheDir());
 
 		jsHeader = getResourceAsString("header.js");
 		searchHeader = getResourceAsString("searchable.js");
@@ -75,13 +95,51 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 		wayf = normalize(getResourceAsString("wayf.html"));
 		noIdPsError = getResourceAsString("no-idps.html");
 
-		// start MetadataUpdateThread and make it available to LoginServlet
-		metaUpdate = new MetadataUpdateThread(metadataURL, getLogoCacheDir());
+		// start MetadataUpdateThread and make it available to LoginServlet.
+		// the snapshot from the last run allows serving requests right away;
+		// the thread then downloads fresh metadata in the background.
+		metaUpdate = new MetadataUpdateThread(metadataURLs, getLogoCacheDir(),
+				getMetadataSnapshotDir(), getOptionalIntContextParameter(
+						"discovery.languages.prewarm", 0),
+				getOptionalIntContextParameter("discovery.filter.concurrency",
+						4), getFilterRules(), getOptionalIntContextParameter(
+						"discovery.filter.max", 10000),
+				getOptionalIntContextParameter("discovery.logos.downloads", 8),
+				getOptionalIntContextParameter("discovery.logos.palette", 8));
+		metaUpdate.loadSnapshot();
 		metaUpdate.start();
 		getServletContext().setAttribute(
 				MetadataUpdateThread.class.getCanonicalName(), metaUpdate);
 		db = getDatabaseConnectionPool();
-		ranking = new IdPRanking(db, metaUpdate);
+		ranking = new IdPRanking(db, getRankingTableInterval() > 0);
+		// restore rankings from before the restart, so that the first
+		// requests don't have to wait for the database
+		ranking.loadSnapshot(getRankingSnapshotFile());
+		rankingSnapshot = new RankingSnapshotThread(ranking,
+				getRankingSnapshotFile());
+		rankingSnapshot.start();
+	}
+
+	/**
+	 * Reads the operator's filter rules, if configured.
+	 * 
+	 * @return the {@link FilterRules}; empty if none are configured
+	 * @throws ServletException
+	 *             if the rules file cannot be read
+	 */
+	private FilterRules getFilterRules() throws ServletException {
+		final String file = getOptionalContextParameter(
+				"discovery.filter.rules");
+		if (file == null)
+			return FilterRules.EMPTY;
+		try {
+			final FilterRules rules = FilterRules.load(new File(file));
+			LOGGER.info("local filter rules for " + rules.size() + " SPs");
+			return rules;
+		} catch (final IOException e) {
+			LOGGER.log(Level.SEVERE, "cannot read filter rules " + file, e);
+			throw new ServletException("cannot read filter rules " + file);
+		}
 	}
 
 	@Override
@@ -89,7 +147,8 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 		super.destroy();
 		getServletContext().removeAttribute(
 				MetadataUpdateThread.class.getCanonicalName());
-		metaUpdate.interrupt();
+		metaUpdate.shutdown();
+		rankingSnapshot.shutdown();
 	}
 
 	/** Normalize whitespace. Not safe to use on untrusted data. */
@@ -151,8 +210,8 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 	private void buildFullDiscovery(final HttpServletRequest req,
 			final HttpServletResponse resp, final LoginParams params)
 			throws IOException {
-		final List<IdPMeta> idps = metaUpdate.getAllMetadata(params
-				.getLanguages());
+		final List<IdPMeta> idps = params.getMetadata().getAllMetadata(
+				params.getLanguages());
 		if (idps.isEmpty()) {
 			// if there are no valid IdPs, the user cannot log in. there is no
 			// point in showing an empty discovery page; just report an error
@@ -173,7 +232,7 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 		buffer.append("var shibbolethDiscoverySearchLimit = Number.POSITIVE_INFINITY;");
 		buffer.append(header2);
 		buildNotices(buffer, params);
-		buildHTML(buffer, idps, params, Integer.MAX_VALUE);
+		buildHTML(buffer, idps, params, Integer.MAX_VALUE, 0);
 		buffer.append(footer);
 		// page won't change until the next metadata update
 		setCacheHeaders(resp, MetadataUpdateThread.INTERVAL);
@@ -203,7 +262,7 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 				+ ";");
 		buffer.append(header2);
 		buildNotices(buffer, params);
-		buildHTML(buffer, idps, params, numTopIdPs);
+		buildHTML(buffer, idps, params, numTopIdPs, numInlineLogos);
 		buildOtherIdPsButton(buffer, params);
 		buffer.append(footer);
 
@@ -268,7 +327,7 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 		buffer.append("shibbolethDiscovery('").append(webRoot)
 				.append("'," + numTopIdPs + ",'");
 		buildNotices(buffer, params);
-		buildHTML(buffer, idps, params, numTopIdPs);
+		buildHTML(buffer, idps, params, numTopIdPs, numInlineLogos);
 		buildOtherIdPsButton(buffer, params);
 		buffer.append("<br />');");
 
@@ -278,16 +337,22 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 		sendResponse(resp, buffer, "text/javascript");
 	}
 
+	/**
+	 * Adds the buttons for all IdPs that the SP accepts. Buttons after the
+	 * first {@code limit} are hidden; the first {@code inline} of them have
+	 * their logos inlined as {@code data:} URIs.
+	 */
 	private void buildHTML(final StringBuilder buffer,
 			final Iterable<IdPMeta> idps, final LoginParams params,
-			final int limit) {
+			final int limit, final int inline) {
 		final Collection<IdPMeta> filter = metaUpdate.getFilter(params);
 
 		int n = 0;
 		for (final IdPMeta idp : idps) {
 			// only add IdPs that the SP actually accepts for login
 			if (filter == null || filter.contains(idp)) {
-				buildHTML(buffer, idp, params, n >= limit);
+				buildHTML(buffer, idp, params, n >= limit, n < limit
+						&& n < inline);
 				n++;
 			}
 		}
@@ -308,11 +373,14 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 			final LoginParams params) {
 		// LinkedHashSet retains order, so items added first will be at the top
 		// of the IdP list served to the client
+		// all of these use the same snapshot, which is the one the LoginParams
+		// were validated against
+		final MetadataSnapshot meta = params.getMetadata();
 		final LinkedHashSet<IdPMeta> list = new LinkedHashSet<IdPMeta>();
-		addCookieFavorite(list, req);
-		addNethashFavorites(list, req);
-		addGlobalFavorites(list);
-		addEverything(list, params.getLanguages());
+		addCookieFavorite(list, meta, req);
+		addNethashFavorites(list, meta, req);
+		addGlobalFavorites(list, meta);
+		addEverything(list, meta, params.getLanguages());
 		return list;
 	}
 
@@ -321,9 +389,9 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 	 * inserts the indicated IdP into the list.
 	 */
 	private void addCookieFavorite(final Collection<IdPMeta> list,
-			final HttpServletRequest req) {
+			final MetadataSnapshot meta, final HttpServletRequest req) {
 		final String entityID = getCookieFavorite(req);
-		final IdPMeta idp = metaUpdate.getMetadata(entityID);
+		final IdPMeta idp = meta.getMetadata(entityID);
 		if (idp != null) {
 			list.add(idp);
 			return;
@@ -356,9 +424,9 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 	 * nethash, and inserts them into the given list.
 	 */
 	private void addNethashFavorites(final Collection<IdPMeta> list,
-			final HttpServletRequest req) {
-		final IdPMeta[] entities = ranking
-				.getIdPList(getClientNetworkHash(req));
+			final MetadataSnapshot meta, final HttpServletRequest req) {
+		final IdPMeta[] entities = ranking.getIdPList(meta,
+				getClientNetworkHash(req));
 		if (entities != null)
 			for (final IdPMeta e : entities)
 				list.add(e);
@@ -368,8 +436,9 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 	 * Obtains the {@link #numTopIdPs} most popular IdPs across all nethashes,
 	 * and inserts them into the given list.
 	 */
-	private void addGlobalFavorites(final LinkedHashSet<IdPMeta> list) {
-		final IdPMeta[] entities = ranking.getGlobalIdPList();
+	private void addGlobalFavorites(final LinkedHashSet<IdPMeta> list,
+			final MetadataSnapshot meta) {
+		final IdPMeta[] entities = ranking.getGlobalIdPList(meta);
 		if (entities != null)
 			for (final IdPMeta e : entities)
 				list.add(e);
@@ -379,8 +448,8 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 	 * Appends the entire list of IdPs. Order matters; this must be called last.
 	 */
 	private void addEverything(final LinkedHashSet<IdPMeta> list,
-			final Iterable<String> languages) {
-		final List<IdPMeta> entities = metaUpdate.getAllMetadata(languages);
+			final MetadataSnapshot meta, final Iterable<String> languages) {
+		final List<IdPMeta> entities = meta.getAllMetadata(languages);
 		if (entities != null)
 			for (final IdPMeta e : entities)
 				list.add(e);
@@ -406,7 +475,8 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 
 	/** Adds the HTML for a single IdP button. */
 	private void buildHTML(final StringBuilder buffer, final IdPMeta idp,
-			final LoginParams params, final boolean extra) {
+			final LoginParams params, final boolean extra,
+			final boolean inline) {
 		// WARNING this is directly included both as literal HTML and in a
 		// single-quotes javascript string! thus, they must not include:
 		// - newlines
@@ -421,15 +491,40 @@ public class DiscoveryServlet extends AbstractShibbolethServlet {
 		if (extra)
 			buffer.append(" style=\"display:none\"");
 		buffer.append('>');
-		// logo; filename never contains anything unsafe
-		buffer.append("<img src=\"").append(webRoot).append("/logo/")
-				.append(idp.getLogoFilename()).append("\" />");
+		// logo; filename never contains anything unsafe, and neither does
+		// base64
+		final String logo = idp.getLogoFilename();
+		final String dataURI = inline ? inlineLogos.get(logo) : null;
+		if (dataURI != null)
+			// inline logos are always the normal size, which is sharp on
+			// most screens. they cannot have a srcset; the browser would load
+			// one of its files instead.
+			buffer.append("<img src=\"").append(dataURI).append("\" />");
+		else
+			buildLogoHTML(buffer, logo);
 		// display name (escaped)
 		buffer.append("<p>")
 				.append(idp.getEscapedDisplayName(params.getLanguages()))
 				.append("</p></a>");
 	}
 
+	/**
+	 * Adds a logo served by the {@link LogosServlet}. srcset lets the browser
+	 * pick the size that matches its screen; src is for browsers that don't
+	 * support srcset.
+	 */
+	private void buildLogoHTML(final StringBuilder buffer, final String logo) {
+		buffer.append("<img src=\"").append(webRoot).append("/logo/")
+				.append(logo).append("\" srcset=\"");
+		for (final LogoSize size : LogoSize.values())
+			buffer.append(webRoot).append("/logo/")
+					.append(size.getFilename(logo)).append(' ')
+					.append(size.getWidth()).append("w,");
+		buffer.setLength(buffer.length() - 1);
+		buffer.append("\" sizes=\"").append(LOGO_DISPLAY_WIDTH)
+				.append("\" />");
+	}
+
 	/** Adds the HTML for the "other IdPs" button. */
 	private void buildOtherIdPsButton(final StringBuilder buffer,
 			final LoginParams params) {
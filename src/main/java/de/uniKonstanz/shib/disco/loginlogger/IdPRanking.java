@@ -1,10 +1,20 @@
 package de.uniKonstanz.shib.disco.loginlogger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -18,36 +28,72 @@ import com.google.common.cache.LoadingCache;
 
 import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
 import de.uniKonstanz.shib.disco.metadata.IdPMeta;
-import de.uniKonstanz.shib.disco.metadata.MetadataUpdateThread;
+import de.uniKonstanz.shib.disco.metadata.MetadataSnapshot;
 import de.uniKonstanz.shib.disco.util.AutoRetryStatement;
 import de.uniKonstanz.shib.disco.util.ConnectionPool;
 
 /**
  * Handles loading ranked lists of IdPs from the database. Results are cached
  * for 1 hour to keep the number of database queries down.
+ * <p>
+ * Rankings are either aggregated from the raw {@code loginstats} on every cache
+ * miss, or, if {@link RankingUpdateThread} is maintaining it, simply read from
+ * the precomputed {@code loginstats_topk} table.
+ * <p>
+ * The cached rankings can be saved to a snapshot file, so that they survive a
+ * restart: after loading the snapshot, requests are served from the restored
+ * rankings until they expire, instead of each network having to wait for the
+ * database first.
  */
 public class IdPRanking {
 	private static final Logger LOGGER = Logger.getLogger(IdPRanking.class
 			.getCanonicalName());
 	private final AutoRetryStatement<List<String>, Integer> getIdPList;
 	private final AutoRetryStatement<List<String>, Void> getGlobalIdPList;
-	private final LoadingCache<Integer, IdPMeta[]> cache;
+	/** Magic number at start of snapshot file: {@code "rank"}. */
+	private static final int SNAPSHOT_MAGIC = 0x72616e6b;
+	/** Snapshot format version. Snapshots of other versions are ignored. */
+	private static final int SNAPSHOT_VERSION = 1;
+	/**
+	 * Maximum age of a snapshot that will still be restored. Rankings change
+	 * slowly, but after a very long downtime, it is better to ask the database
+	 * again.
+	 */
+	private static final long MAX_SNAPSHOT_AGE = 24 * 60 * 60 * 1000;
+	private final LoadingCache<Integer, String[]> cache;
 
 	/**
 	 * @param db
 	 *            the {@link ConnectionPool} to load data from
-	 * @param meta
-	 *            the {@link MetadataUpdateThread} containing the metadata
-	 *            objects for all IdPs
+	 * @param useRankingTable
+	 *            <code>true</code> to read rankings from the
+	 *            {@code loginstats_topk} table maintained by
+	 *            {@link RankingUpdateThread}
 	 * @throws ServletException
 	 *             if the database statement cannot be prepared
 	 */
-	public IdPRanking(final ConnectionPool db, final MetadataUpdateThread meta)
+	public IdPRanking(final ConnectionPool db, final boolean useRankingTable)
 			throws ServletException {
+		final String perNetworkQuery;
+		final String globalQuery;
+		if (useRankingTable) {
+			// trivial indexed lookups; the aggregation has already been done
+			// in the background
+			perNetworkQuery = "select entityid from loginstats_topk"
+					+ " where iphash = ? order by rank";
+			globalQuery = "select entityid from loginstats_topk"
+					+ " where iphash = "
+					+ AbstractShibbolethServlet.NETHASH_UNDEFINED
+					+ " order by rank";
+		} else {
+			perNetworkQuery = "select entityid from loginstats where iphash = ?"
+					+ " group by entityid order by sum(count) desc";
+			globalQuery = "select entityid from loginstats"
+					+ " group by entityid order by sum(count) desc";
+		}
 
 		getIdPList = new AutoRetryStatement<List<String>, Integer>(db,
-				"select entityid from loginstats where iphash = ?"
-						+ " group by entityid order by sum(count) desc", false) {
+				perNetworkQuery, false) {
 			@Override
 			protected List<String> exec(final PreparedStatement stmt,
 					final Integer nethash) throws SQLException {
@@ -56,8 +102,7 @@ public class IdPRanking {
 			}
 		};
 		getGlobalIdPList = new AutoRetryStatement<List<String>, Void>(db,
-				"select entityid from loginstats"
-						+ " group by entityid order by sum(count) desc", false) {
+				globalQuery, false) {
 			@Override
 			protected List<String> exec(final PreparedStatement stmt,
 					final Void p) throws SQLException {
@@ -71,16 +116,15 @@ public class IdPRanking {
 		// 4-40 MB anyway, which is less than Tomcat itself.
 		// no soft references either; throwing away the tiny values doesn't free
 		// enough memory to be worth the effort.
+		// the cache holds entityIDs rather than IdPMeta objects so that it can
+		// be restored from a snapshot before any metadata is available.
 		cache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.HOURS)
-				.build(new CacheLoader<Integer, IdPMeta[]>() {
+				.build(new CacheLoader<Integer, String[]>() {
 					@Override
-					public IdPMeta[] load(final Integer key)
+					public String[] load(final Integer key)
 							throws SQLException {
 						final List<String> idps = loadIdPList(key);
-						final ArrayList<IdPMeta> list = new ArrayList<IdPMeta>(
-								idps.size());
-						meta.addMetadata(list, idps);
-						return list.toArray(new IdPMeta[list.size()]);
+						return idps.toArray(new String[idps.size()]);
 					}
 				});
 	}
@@ -126,20 +170,27 @@ public class IdPRanking {
 	/**
 	 * Gets the {@link #numIdPs} globally most popular IdPs.
 	 * 
+	 * @param meta
+	 *            the {@link MetadataSnapshot} to resolve entityIDs against
 	 * @return list of up to {@link #numIdPs} entityIDs
 	 */
-	public IdPMeta[] getGlobalIdPList() {
-		return getIdPList(AbstractShibbolethServlet.NETHASH_UNDEFINED);
+	public IdPMeta[] getGlobalIdPList(final MetadataSnapshot meta) {
+		return getIdPList(meta, AbstractShibbolethServlet.NETHASH_UNDEFINED);
 	}
 
 	/**
 	 * Gets the {@link #numIdPs} most popular IdPs for the given network hash.
 	 * 
+	 * @param meta
+	 *            the {@link MetadataSnapshot} to resolve entityIDs against
+	 * @param nethash
+	 *            client network hash
 	 * @return list of up to {@link #numIdPs} entityIDs
 	 */
-	public IdPMeta[] getIdPList(final int nethash) {
+	public IdPMeta[] getIdPList(final MetadataSnapshot meta, final int nethash) {
+		final String[] entityIDs;
 		try {
-			return cache.get(nethash);
+			entityIDs = cache.get(nethash);
 		} catch (final ExecutionException e) {
 			if (!(e.getCause() instanceof SQLException))
 				// SQL exceptions have already been reported (in loadIdPList);
@@ -148,5 +199,120 @@ public class IdPRanking {
 						+ nethash, e);
 			return null;
 		}
+
+		// silently skips IdPs that have disappeared from metadata, or that
+		// aren't known yet because metadata is still loading
+		final ArrayList<IdPMeta> list = new ArrayList<IdPMeta>(
+				entityIDs.length);
+		for (final String entityID : entityIDs) {
+			final IdPMeta idp = meta.getMetadata(entityID);
+			if (idp != null)
+				list.add(idp);
+		}
+		return list.toArray(new IdPMeta[list.size()]);
+	}
+
+	/**
+	 * Writes all currently cached rankings to a snapshot file. The file is
+	 * replaced atomically, so a crash while writing leaves the previous
+	 * snapshot intact.
+	 * 
+	 * @param file
+	 *            snapshot file to create or overwrite
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void saveSnapshot(final File file) throws IOException {
+		final Map<Integer, String[]> rankings = new HashMap<Integer, String[]>(
+				cache.asMap());
+
+		// entityIDs appear in the rankings of many networks, so they are
+		// stored only once and referenced by index
+		final Map<String, Integer> index = new HashMap<String, Integer>();
+		final List<String> entityIDs = new ArrayList<String>();
+		for (final String[] ranking : rankings.values())
+			for (final String entityID : ranking)
+				if (!index.containsKey(entityID)) {
+					index.put(entityID, entityIDs.size());
+					entityIDs.add(entityID);
+				}
+
+		final File temp = new File(file.getParentFile(), file.getName()
+				+ ".tmp");
+		temp.delete();
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(entityIDs.size());
+			for (final String entityID : entityIDs)
+				out.writeUTF(entityID);
+			out.writeInt(rankings.size());
+			for (final Map.Entry<Integer, String[]> e : rankings.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeShort(e.getValue().length);
+				for (final String entityID : e.getValue())
+					out.writeInt(index.get(entityID));
+			}
+		}
+		if (!temp.renameTo(file)) {
+			// rename doesn't overwrite on some platforms
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("cannot rename " + temp.getAbsolutePath()
+						+ " to " + file.getAbsolutePath());
+		}
+		LOGGER.fine("saved " + rankings.size() + " rankings to "
+				+ file.getAbsolutePath());
+	}
+
+	/**
+	 * Restores the rankings saved by {@link #saveSnapshot(File)}. They are
+	 * put into the cache as if they had just been loaded from the database, ie.
+	 * they will be reloaded when they expire. Missing, outdated or corrupt
+	 * snapshots are ignored.
+	 * 
+	 * @param file
+	 *            snapshot file to read
+	 */
+	public void loadSnapshot(final File file) {
+		if (!file.exists())
+			return;
+		if (System.currentTimeMillis() - file.lastModified() > MAX_SNAPSHOT_AGE) {
+			LOGGER.info("ignoring outdated ranking snapshot "
+					+ file.getAbsolutePath());
+			return;
+		}
+
+		final Map<Integer, String[]> rankings = new HashMap<Integer, String[]>();
+		try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != SNAPSHOT_MAGIC
+					|| in.readInt() != SNAPSHOT_VERSION) {
+				LOGGER.info("ignoring incompatible ranking snapshot "
+						+ file.getAbsolutePath());
+				return;
+			}
+			final String[] entityIDs = new String[in.readInt()];
+			for (int i = 0; i < entityIDs.length; i++)
+				entityIDs[i] = in.readUTF();
+			final int numRankings = in.readInt();
+			for (int i = 0; i < numRankings; i++) {
+				final int nethash = in.readInt();
+				final String[] ranking = new String[in.readUnsignedShort()];
+				for (int j = 0; j < ranking.length; j++)
+					ranking[j] = entityIDs[in.readInt()];
+				rankings.put(nethash, ranking);
+			}
+		} catch (final IOException | ArrayIndexOutOfBoundsException e) {
+			// corrupt snapshot. not a problem; the rankings will simply be
+			// loaded from the database as usual.
+			LOGGER.log(Level.WARNING, "cannot read ranking snapshot "
+					+ file.getAbsolutePath(), e);
+			return;
+		}
+		cache.putAll(rankings);
+		LOGGER.info("restored " + rankings.size() + " rankings from "
+				+ file.getAbsolutePath());
 	}
 }
@@ -14,7 +14,7 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 
 import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
-import de.uniKonstanz.shib.disco.metadata.MetadataUpdateThread;
+import de.uniKonstanz.shib.disco.metadata.MetadataSnapshot;
 
 /**
  * Represents a combination of shibboleth login URL and login target URL, parsed
@@ -38,11 +38,12 @@ public class LoginParams {
 	private boolean defaultReturn;
 
 	private final List<String> languages;
+	private final MetadataSnapshot metadata;
 
 	/**
 	 * @param meta
-	 *            the {@link MetadataUpdateThread} providing information about
-	 *            the SP, or <code>null</code>
+	 *            the {@link MetadataSnapshot} providing information about the
+	 *            SP, or <code>null</code> if there is no metadata at all
 	 * @param spEntityID
 	 *            entityID of the SP
 	 * @param returnLocation
@@ -60,12 +61,13 @@ public class LoginParams {
 	 * @param languages
 	 *            languages the client wants, in order of preference
 	 */
-	public LoginParams(final MetadataUpdateThread meta,
+	public LoginParams(final MetadataSnapshot meta,
 			final String spEntityID, final String returnLocation,
 			final String target, final String returnIDParam,
 			final String passive, final List<String> languages) {
 		this.spEntityID = spEntityID;
 		this.languages = languages;
+		metadata = meta;
 		this.passive = passive != null && passive.equalsIgnoreCase("true");
 
 		if (returnLocation != null) {
@@ -252,4 +254,16 @@ public class LoginParams {
 	public Iterable<String> getLanguages() {
 		return languages;
 	}
+
+	/**
+	 * Gets the metadata that was used to validate the parameters. Everything
+	 * else in the request should use the same snapshot, so that it sees a
+	 * consistent view of the metadata.
+	 * 
+	 * @return the {@link MetadataSnapshot}, or <code>null</code> if there is
+	 *         no metadata at all
+	 */
+	public MetadataSnapshot getMetadata() {
+		return metadata;
+	}
 }
@@ -47,6 +47,7 @@ public class LoginServlet extends AbstractShibbolethServlet {
 	private DatabaseWorkerThread updateThread;
 	private DatabaseCleanupThread cleanupThread;
 	private CounterFlushThread flushThread;
+	private RankingUpdateThread rankingThread;
 
 	@Override
 	public void init() throws ServletException {
@@ -54,6 +55,9 @@ public class LoginServlet extends AbstractShibbolethServlet {
 		final ConnectionPool db = getDatabaseConnectionPool();
 		updateThread = new DatabaseWorkerThread(db);
 		cleanupThread = new DatabaseCleanupThread(db);
+		final int rankingInterval = getRankingTableInterval();
+		if (rankingInterval > 0)
+			rankingThread = new RankingUpdateThread(db, rankingInterval);
 
 		// cache abused as a way of aggregating counts for 10 minutes.
 		// cache size is limited so that the memory consumption cannot grow
@@ -80,6 +84,8 @@ public class LoginServlet extends AbstractShibbolethServlet {
 		updateThread.start();
 		cleanupThread.start();
 		flushThread.start();
+		if (rankingThread != null)
+			rankingThread.start();
 	}
 
 	@Override
@@ -90,6 +96,8 @@ public class LoginServlet extends AbstractShibbolethServlet {
 		updateThread.shutdown();
 		cleanupThread.shutdown();
 		flushThread.shutdown();
+		if (rankingThread != null)
+			rankingThread.shutdown();
 	}
 
 	@Override
@@ -155,6 +163,6 @@ public class LoginServlet extends AbstractShibbolethServlet {
 			LOGGER.info("no metadata yet; not logging " + entityID);
 			return null;
 		}
-		return meta.getMetadata(entityID);
+		return meta.getSnapshot().getMetadata(entityID);
 	}
 }
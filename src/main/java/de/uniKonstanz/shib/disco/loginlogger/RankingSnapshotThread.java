@@ -0,0 +1,75 @@
+package de.uniKonstanz.shib.disco.loginlogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background thread that periodically saves the rankings cached by
+ * {@link IdPRanking} to a snapshot file, so that they can be restored after a
+ * restart or redeploy. A final snapshot is written on shutdown.
+ */
+public class RankingSnapshotThread extends Thread {
+	private static final Logger LOGGER = Logger
+			.getLogger(RankingSnapshotThread.class.getCanonicalName());
+	/**
+	 * Save every 15 minutes. Cached rankings live for an hour, so this keeps
+	 * the snapshot reasonably close to the cache even if the servlet is killed
+	 * without a proper shutdown.
+	 */
+	private static final long INTERVAL = 15 * 60 * 1000;
+	private final IdPRanking ranking;
+	private final File file;
+
+	/**
+	 * @param ranking
+	 *            the {@link IdPRanking} to save
+	 * @param file
+	 *            snapshot file to write
+	 */
+	public RankingSnapshotThread(final IdPRanking ranking, final File file) {
+		super("ranking snapshot writer");
+		this.ranking = ranking;
+		this.file = file;
+	}
+
+	/**
+	 * Terminates the background thread, waiting until it has actually shut
+	 * down, and writes a final snapshot.
+	 */
+	public void shutdown() {
+		interrupt();
+		if (isAlive())
+			try {
+				join();
+			} catch (final InterruptedException e) {
+				LOGGER.log(Level.SEVERE,
+						"ranking snapshot thread shutdown failed", e);
+			}
+		save();
+	}
+
+	@Override
+	public void run() {
+		while (!interrupted()) {
+			try {
+				Thread.sleep(INTERVAL);
+			} catch (final InterruptedException e1) {
+				break;
+			}
+
+			save();
+		}
+	}
+
+	private void save() {
+		try {
+			ranking.saveSnapshot(file);
+		} catch (final IOException e) {
+			// not serious; the next restart will just be a bit slower
+			LOGGER.log(Level.WARNING, "cannot save ranking snapshot to "
+					+ file.getAbsolutePath(), e);
+		}
+	}
+}
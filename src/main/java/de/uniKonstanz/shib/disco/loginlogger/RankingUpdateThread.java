@@ -0,0 +1,124 @@
+package de.uniKonstanz.shib.disco.loginlogger;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
+import de.uniKonstanz.shib.disco.util.AutoRetryStatement;
+import de.uniKonstanz.shib.disco.util.ConnectionPool;
+
+/**
+ * Background thread for {@link LoginServlet} that periodically recomputes the
+ * {@code loginstats_topk} table from the raw {@code loginstats}. This moves the
+ * aggregation over the 30-day window off the request path: {@link IdPRanking}
+ * then only performs an indexed lookup of precomputed ranks.
+ * <p>
+ * The global ranking is stored under {@link
+ * AbstractShibbolethServlet#NETHASH_UNDEFINED}, which cannot collide with any
+ * real network hash.
+ */
+public class RankingUpdateThread extends Thread {
+	private static final Logger LOGGER = Logger
+			.getLogger(RankingUpdateThread.class.getCanonicalName());
+	/**
+	 * Maximum number of IdPs stored per network. This has to be somewhat
+	 * larger than the number of IdPs shown in the friendly discovery because
+	 * the SP's filter may reject some of the most popular ones.
+	 */
+	private static final int MAX_RANK = 50;
+	private final AutoRetryStatement<Void, Integer> update;
+	private final long interval;
+
+	/**
+	 * @param db
+	 *            the {@link ConnectionPool} to recompute the table in
+	 * @param interval
+	 *            update interval, in minutes
+	 * @throws ServletException
+	 *             if the database statement cannot be prepared
+	 */
+	public RankingUpdateThread(final ConnectionPool db, final int interval)
+			throws ServletException {
+		super("ranking update thread");
+		this.interval = interval * 60 * 1000l;
+		// single set-based statement that ranks all networks at once. the
+		// old ranking is deleted in the same transaction so that readers
+		// never see a half-updated table.
+		update = new AutoRetryStatement<Void, Integer>(db,
+				"insert into loginstats_topk(iphash, rank, entityid)"
+						+ " select iphash, rank, entityid from ("
+						+ " select iphash, entityid, row_number() over"
+						+ " (partition by iphash order by sum(count) desc,"
+						+ " entityid) as rank"
+						+ " from loginstats group by iphash, entityid"
+						+ " union all select "
+						+ AbstractShibbolethServlet.NETHASH_UNDEFINED
+						+ ", entityid, row_number() over"
+						+ " (order by sum(count) desc, entityid)"
+						+ " from loginstats group by entityid) ranked"
+						+ " where rank <= ?", true) {
+			@Override
+			protected Void exec(final PreparedStatement stmt,
+					final Integer maxRank) throws SQLException {
+				try (final Statement delete = stmt.getConnection()
+						.createStatement()) {
+					delete.executeUpdate("delete from loginstats_topk");
+				}
+				stmt.setInt(1, maxRank);
+				stmt.executeUpdate();
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Terminates the background thread, waiting until it has actually shut
+	 * down.
+	 */
+	public void shutdown() {
+		interrupt();
+		if (!isAlive())
+			return;
+		try {
+			join();
+		} catch (final InterruptedException e) {
+			LOGGER.log(Level.SEVERE, "ranking update thread shutdown failed",
+					e);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!interrupted()) {
+			LOGGER.fine("recomputing IdP ranking table");
+			updateRanking();
+
+			try {
+				Thread.sleep(interval);
+			} catch (final InterruptedException e1) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the ranking table, retrying the database operations if
+	 * necessary.
+	 */
+	private void updateRanking() {
+		try {
+			update.execute(MAX_RANK);
+		} catch (final SQLException e) {
+			// retry failed, ie. reconnecting failed. the database is probably
+			// down; the previous ranking remains in place until the next
+			// attempt, which is good enough.
+			LOGGER.log(Level.WARNING,
+					"failed to update ranking table; database down?", e);
+		}
+	}
+}
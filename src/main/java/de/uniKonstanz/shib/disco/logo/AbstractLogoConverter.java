@@ -4,12 +4,23 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 /**
  * Converts logos for use in the IdP buttons. This means scaling them to a
@@ -17,51 +28,64 @@ import javax.imageio.ImageIO;
  * cannot be downloaded, uses {@link IdentIcon} to generate a random unique logo
  * from the hashed entityID.
  */
-public class AbstractLogoConverter extends Thread {
+public class AbstractLogoConverter {
 	/**
-	 * Output logo width, without 1px border. If the aspect ratio changes, the
-	 * CSS has to be adjusted.
+	 * Maximum number of pixels in an input logo. A small, highly compressed
+	 * file can easily claim a 20000x20000 image, which would take ages to
+	 * decode even with subsampling.
 	 */
-	private static final int LOGO_WIDTH = 300 - 2;
+	private static final long MAX_PIXELS = 8000 * 8000;
 	/**
-	 * Output logo height, without 1px border. If the aspect ratio changes, the
-	 * CSS has to be adjusted.
+	 * Minimum size of subsampled logos, relative to the output size. Leaves the
+	 * bicubic scaling something to interpolate.
 	 */
-	private static final int LOGO_HEIGHT = 150 - 2;
+	private static final int SUBSAMPLING_MARGIN = 2;
+
+	/**
+	 * Fixed-point reciprocals for rescaling the color of semi-transparent
+	 * pixels: {@code x * RECIPROCALS[alpha] >> RECIPROCAL_SHIFT} is exactly
+	 * {@code 255 * x / alpha} for all {@code 0 <= x <= alpha <= 255}, but
+	 * without the division. Rounding up is what makes it exact.
+	 */
+	private static final int[] RECIPROCALS = new int[256];
+	private static final int RECIPROCAL_SHIFT = 16;
+	static {
+		for (int alpha = 1; alpha < RECIPROCALS.length; alpha++)
+			RECIPROCALS[alpha] = ((255 << RECIPROCAL_SHIFT) + alpha - 1)
+					/ alpha;
+	}
 
 	protected final File logoDir;
+	private final int maxPaletteError;
 
 	/**
 	 * @param logoDir
 	 *            logo cache directory where files are created
-	 * @param threadName
-	 *            name of thread (for identification only)
+	 * @param maxPaletteError
+	 *            maximum color error of any pixel when writing logos as palette
+	 *            PNGs; see {@link PaletteQuantizer}. 0 only uses palettes where
+	 *            that is lossless; negative never uses palettes.
 	 */
-	public AbstractLogoConverter(final File logoDir, final String threadName) {
-		super("logo converter: " + threadName);
+	public AbstractLogoConverter(final File logoDir, final int maxPaletteError) {
 		this.logoDir = logoDir;
+		this.maxPaletteError = maxPaletteError;
 	}
 
 	/**
-	 * Replaces white pixels with transparency.
+	 * Replaces white pixels with transparency, in all {@link LogoSize}s.
 	 * 
 	 * @param bytes
 	 *            input image as a byte array
-	 * @return
+	 * @return the converted logo in every {@link LogoSize}
 	 * @throws IOException
 	 *             if writing fails
 	 * @throws InconvertibleLogoException
 	 *             if the input cannot be read as an image
 	 */
-	protected static BufferedImage whiteToTransparency(final byte[] bytes)
+	protected static Map<LogoSize, BufferedImage> whiteToTransparency(
+			final byte[] bytes)
 			throws IOException, InconvertibleLogoException {
-		final BufferedImage image;
-		try {
-			image = ImageIO.read(new ByteArrayInputStream(bytes));
-		} catch (final IOException e) {
-			throw new RuntimeException(
-					"ByteArrayInputStream throwing IOExceptions!?");
-		}
+		final BufferedImage image = decode(bytes);
 		if (image == null) {
 			final byte[] sample;
 			if (bytes.length >= 20) {
@@ -77,69 +101,225 @@ public class AbstractLogoConverter extends Thread {
 	}
 
 	/**
-	 * Replaces white pixels with transparency.
+	 * Decodes an image, like {@link ImageIO#read(java.io.InputStream)} but
+	 * without ever decoding it at full size. The dimensions are read from the
+	 * header first, and images above {@link #MAX_PIXELS} are rejected before
+	 * decoding starts. Larger images are subsampled while decoding, so that the
+	 * decoded raster is just a few times larger than the output logo; that's
+	 * still enough for the bicubic scaling to look good.
+	 * 
+	 * @param bytes
+	 *            input image as a byte array
+	 * @return the decoded (and possibly subsampled) image, or <code>null</code>
+	 *         if there is no {@link ImageReader} for the format
+	 * @throws InconvertibleLogoException
+	 *             if the image is too large or cannot be decoded
+	 */
+	private static BufferedImage decode(final byte[] bytes)
+			throws InconvertibleLogoException {
+		final ImageInputStream stream;
+		try {
+			stream = ImageIO.createImageInputStream(new ByteArrayInputStream(
+					bytes));
+		} catch (final IOException e) {
+			throw new RuntimeException(
+					"ByteArrayInputStream throwing IOExceptions!?");
+		}
+		final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext())
+			return null;
+
+		final ImageReader reader = readers.next();
+		try {
+			reader.setInput(stream, true, true);
+			final int width = reader.getWidth(0);
+			final int height = reader.getHeight(0);
+			if (width <= 0 || height <= 0)
+				throw new InconvertibleLogoException("empty image: " + width
+						+ "x" + height);
+			if ((long) width * height > MAX_PIXELS)
+				throw new InconvertibleLogoException("image too large: "
+						+ width + "x" + height);
+
+			// subsample by the same factor in both directions to keep the
+			// aspect ratio, but only down to SUBSAMPLING_MARGIN times the
+			// largest output size in the limiting direction
+			final int step = Math.max(1, Math.max(
+					width / LogoSize.LARGE.getWidth(),
+					height / LogoSize.LARGE.getHeight())
+					/ SUBSAMPLING_MARGIN);
+			final ImageReadParam param = reader.getDefaultReadParam();
+			if (step > 1)
+				param.setSourceSubsampling(step, step, 0, 0);
+			return reader.read(0, param);
+		} catch (final IOException e) {
+			throw new InconvertibleLogoException("cannot decode image: "
+					+ e.getMessage(), e);
+		} finally {
+			reader.dispose();
+			try {
+				stream.close();
+			} catch (final IOException e) {
+				// in-memory stream; nothing to clean up
+			}
+		}
+	}
+
+	/**
+	 * Replaces white pixels with transparency, in all {@link LogoSize}s.
 	 * 
 	 * @param image
 	 *            {@link BufferedImage} containing the input image, in any color
 	 *            space
-	 * @return {@link BufferedImage} containing the input image, in ARGB color
-	 *         space ({@link BufferedImage#TYPE_INT_ARGB}).
+	 * @return the converted logo in every {@link LogoSize}, in ARGB color space
+	 *         ({@link BufferedImage#TYPE_INT_ARGB}).
+	 */
+	protected static Map<LogoSize, BufferedImage> whiteToTransparency(
+			final BufferedImage image) {
+		final Map<LogoSize, BufferedImage> logos = new EnumMap<LogoSize, BufferedImage>(
+				LogoSize.class);
+		// scale largest size first, then each size from the next larger one.
+		// that way, all but the first step scale by 2:1, which bicubic
+		// interpolation handles without aliasing. scaling the small logo
+		// straight from the original would skip most of its pixels.
+		BufferedImage source = image;
+		for (final LogoSize size : LogoSize.values()) {
+			source = scale(source, size);
+			logos.put(size, whiteToTransparency(source, size));
+		}
+		return logos;
+	}
+
+	/**
+	 * Scales an image to fit a {@link LogoSize}, without the border, keeping
+	 * its aspect ratio. Transparent areas become white.
+	 * 
+	 * @param image
+	 *            {@link BufferedImage} containing the input image, in any color
+	 *            space
+	 * @param size
+	 *            {@link LogoSize} to fit into
+	 * @return {@link BufferedImage} containing the scaled image, in RGB color
+	 *         space ({@link BufferedImage#TYPE_INT_RGB}).
 	 */
-	protected static BufferedImage whiteToTransparency(final BufferedImage image) {
-		// calculate scaling factor to fit into a standard 275x150 rectangle
-		final float fX = image.getWidth() / (float) LOGO_WIDTH;
-		final float fY = image.getHeight() / (float) LOGO_HEIGHT;
+	private static BufferedImage scale(final BufferedImage image,
+			final LogoSize size) {
+		// calculate scaling factor to fit into the logo rectangle
+		final int maxWidth = size.getWidth() - 2;
+		final int maxHeight = size.getHeight() - 2;
+		final float fX = image.getWidth() / (float) maxWidth;
+		final float fY = image.getHeight() / (float) maxHeight;
 		float f = fX;
 		if (fY > fX)
 			f = fY;
-		final int width = (int) (LOGO_WIDTH * fX / f);
-		final int height = (int) (LOGO_HEIGHT * fY / f);
-		final int left = (LOGO_WIDTH - width) / 2;
-		final int top = (LOGO_HEIGHT - height) / 2;
-		// perform scaling, convert to ARGB color space, and add a 1px space
-		// around everything, to work around stupid scaling bugs in "some
-		// browsers" (Firefox).
-		final BufferedImage buffer = new BufferedImage(LOGO_WIDTH + 2,
-				LOGO_HEIGHT + 2, BufferedImage.TYPE_INT_ARGB);
+		final int width = Math.max(1, (int) (maxWidth * fX / f));
+		final int height = Math.max(1, (int) (maxHeight * fY / f));
+		final BufferedImage buffer = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
 		final Graphics2D g2d = buffer.createGraphics();
 		g2d.setBackground(Color.white);
 		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
 				RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-		g2d.clearRect(0, 0, LOGO_WIDTH + 2, LOGO_HEIGHT + 2);
-		g2d.drawImage(image, left + 1, top + 1, width, height, null);
+		g2d.clearRect(0, 0, width, height);
+		g2d.drawImage(image, 0, 0, width, height, null);
+		g2d.dispose();
+		return buffer;
+	}
+
+	/**
+	 * Replaces white pixels with transparency.
+	 * 
+	 * @param image
+	 *            {@link BufferedImage} containing the image, already scaled by
+	 *            {@link #scale(BufferedImage, LogoSize)}
+	 * @param size
+	 *            {@link LogoSize} of the output
+	 * @return {@link BufferedImage} containing the input image, in ARGB color
+	 *         space ({@link BufferedImage#TYPE_INT_ARGB}).
+	 */
+	private static BufferedImage whiteToTransparency(final BufferedImage image,
+			final LogoSize size) {
+		// center in the logo rectangle, convert to ARGB color space, and add
+		// a 1px space around everything, to work around stupid scaling bugs
+		// in "some browsers" (Firefox).
+		final int left = (size.getWidth() - 2 - image.getWidth()) / 2;
+		final int top = (size.getHeight() - 2 - image.getHeight()) / 2;
+		final BufferedImage buffer = new BufferedImage(size.getWidth(),
+				size.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		final Graphics2D g2d = buffer.createGraphics();
+		g2d.setBackground(Color.white);
+		g2d.clearRect(0, 0, size.getWidth(), size.getHeight());
+		g2d.drawImage(image, left + 1, top + 1, null);
 		g2d.dispose();
 
 		// convert white to transparency. this involves rescaling the color
 		// of semi-transparent pixels, to account for the fact that they
 		// will be multiplied with alpha before rendering. without this,
-		// mid-tone grays would look washed-out.
-		final int[] pixels = buffer.getRaster().getPixels(0, 0, LOGO_WIDTH + 2,
-				LOGO_HEIGHT + 2, (int[]) null);
-		for (int i = 0; i < pixels.length; i += 4) {
-			final int r = pixels[i + 0];
-			final int g = pixels[i + 1];
-			final int b = pixels[i + 2];
-			int trans = r;
-			if (g < trans)
-				trans = g;
-			if (b < trans)
-				trans = b;
+		// mid-tone grays would look washed-out. works directly on the packed
+		// ARGB pixels instead of copying them out channel by channel.
+		final int[] pixels = ((DataBufferInt) buffer.getRaster()
+				.getDataBuffer()).getData();
+		for (int i = 0; i < pixels.length; i++) {
+			final int pixel = pixels[i];
+			final int r = (pixel >> 16) & 0xff;
+			final int g = (pixel >> 8) & 0xff;
+			final int b = pixel & 0xff;
+			final int trans = Math.min(r, Math.min(g, b));
 			final int alpha = 255 - trans;
-			pixels[i + 3] = alpha;
-			if (alpha != 0) {
-				pixels[i + 0] = 255 * (r - trans) / alpha;
-				pixels[i + 1] = 255 * (g - trans) / alpha;
-				pixels[i + 2] = 255 * (b - trans) / alpha;
-			}
+			final int scale = RECIPROCALS[alpha];
+			// fully transparent pixels are pure white; keep their color
+			pixels[i] = alpha == 0 ? pixel & 0xffffff : alpha << 24
+					| ((r - trans) * scale >> RECIPROCAL_SHIFT) << 16
+					| ((g - trans) * scale >> RECIPROCAL_SHIFT) << 8
+					| (b - trans) * scale >> RECIPROCAL_SHIFT;
 		}
-		buffer.getRaster().setPixels(0, 0, LOGO_WIDTH + 2, LOGO_HEIGHT + 2,
-				pixels);
 		return buffer;
 	}
 
 	/**
-	 * Writes a {@link BufferedImage} to a file. Makes sure that all parent
-	 * directories exist.
+	 * Writes a logo in all {@link LogoSize}s. The {@link LogoSize#NORMAL} file
+	 * is written last, so that its existence means that all sizes exist.
+	 * 
+	 * @param logos
+	 *            the logo in every {@link LogoSize}, as returned by
+	 *            {@link #whiteToTransparency(BufferedImage)}
+	 * @param outputFile
+	 *            {@link File} for the {@link LogoSize#NORMAL} logo; the other
+	 *            sizes are named after it
+	 * @throws IOException
+	 *             on failure
+	 */
+	protected void writeTo(final Map<LogoSize, BufferedImage> logos,
+			final File outputFile) throws IOException {
+		for (final LogoSize size : LogoSize.values())
+			if (size != LogoSize.NORMAL)
+				writeTo(logos.get(size), new File(outputFile.getParentFile(),
+						size.getFilename(outputFile.getName())));
+		writeTo(logos.get(LogoSize.NORMAL), outputFile);
+	}
+
+	/**
+	 * Checks whether a logo has been written in all {@link LogoSize}s. Logos
+	 * converted before there were several sizes only exist in
+	 * {@link LogoSize#NORMAL} size, and have to be converted again.
+	 * 
+	 * @param outputFile
+	 *            {@link File} for the {@link LogoSize#NORMAL} logo
+	 * @return <code>true</code> if all sizes exist
+	 */
+	protected static boolean isComplete(final File outputFile) {
+		// the normal size is written last, so the others exist if it does,
+		// except for old logos. these are missing all the other sizes.
+		return outputFile.exists()
+				&& new File(outputFile.getParentFile(),
+						LogoSize.LARGE.getFilename(outputFile.getName()))
+						.exists();
+	}
+
+	/**
+	 * Writes a {@link BufferedImage} to a file, as a palette PNG if that stays
+	 * within the maximum palette error. Makes sure that all parent directories
+	 * exist.
 	 * 
 	 * @param buffer
 	 *            {@link BufferedImage} to write
@@ -148,16 +328,21 @@ public class AbstractLogoConverter extends Thread {
 	 * @throws IOException
 	 *             on failure
 	 */
-	protected static void writeTo(final BufferedImage buffer,
-			final File outputFile) throws IOException {
+	private void writeTo(final BufferedImage buffer, final File outputFile)
+			throws IOException {
+		BufferedImage image = null;
+		if (maxPaletteError >= 0)
+			image = PaletteQuantizer.quantize(buffer, maxPaletteError);
+		if (image == null)
+			image = buffer;
+
 		// make sure parent directory exists. expected to fail almost always
 		// because the directory already exists.
 		outputFile.getParentFile().mkdirs();
 		final File temp = new File(outputFile.getParentFile(),
 				outputFile.getName() + ".tmp");
 		temp.delete();
-		if (!ImageIO.write(buffer, "png", temp))
-			throw new IOException("cannot convert to PNG");
+		writePNG(image, temp);
 		if (temp.renameTo(outputFile))
 			return;
 		if (!outputFile.exists())
@@ -168,4 +353,30 @@ public class AbstractLogoConverter extends Thread {
 					+ " to " + outputFile.getAbsolutePath());
 		temp.delete();
 	}
+
+	/**
+	 * Writes a PNG with maximum compression. Logos are written once but served
+	 * many times, so the extra CPU time is well spent. Older JREs don't support
+	 * setting the PNG compression level and just use the default.
+	 */
+	private static void writePNG(final BufferedImage image, final File file)
+			throws IOException {
+		final Iterator<ImageWriter> writers = ImageIO
+				.getImageWritersByFormatName("png");
+		if (!writers.hasNext())
+			throw new IOException("cannot convert to PNG");
+		final ImageWriter writer = writers.next();
+		try (final ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+			final ImageWriteParam param = writer.getDefaultWriteParam();
+			if (param.canWriteCompressed()) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				// for PNG, quality 0 means deflate level 9
+				param.setCompressionQuality(0);
+			}
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
 }
@@ -3,36 +3,40 @@ package de.uniKonstanz.shib.disco.logo;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.uniKonstanz.shib.disco.metadata.IdPMeta;
 
 /**
- * Asynchronously creates Generates a fallback "logo" from the hashed entityID,
- * writes it to a file in {@link #logoDir} named after a hash of the entityID,
- * and sets that filename as the {@link IdPMeta}'s fallback logo. The generated
- * logo is unique with high probability; the filename is guaranteed to be
- * unique.
+ * Generates a fallback "logo" from the hashed entityID, writes it to a file in
+ * {@link #logoDir} named after a hash of the entityID, and sets that filename
+ * as the {@link IdPMeta}'s fallback logo. The generated logo is unique with
+ * high probability; the filename is guaranteed to be unique.
  * <p>
- * These threads aren't accounted for in any place; they are shoot-and-forget.
- * But they finish extremely quickly so they shouldn't leak any resources.
+ * Runs in the CPU stage of the {@link LogoPipeline}; there is nothing to
+ * download.
  */
-public class FallbackLogoThread extends AbstractLogoConverter {
-	private static final Logger LOGGER = Logger
-			.getLogger(FallbackLogoThread.class.getCanonicalName());
+public class FallbackLogo extends AbstractLogoConverter implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(FallbackLogo.class
+			.getCanonicalName());
 	private static final IdentIcon ident = new IdentIcon(74, 2, 1);
 
 	private final IdPMeta meta;
 
 	/**
-	 * @param converter
-	 *            {@link LogoConverter} to use
+	 * @param logoDir
+	 *            logo cache directory where files are created
 	 * @param meta
 	 *            {@link IdPMeta} whose logo will be delay-created
+	 * @param maxPaletteError
+	 *            maximum color error when writing palette PNGs; negative to
+	 *            disable palettes
 	 */
-	public FallbackLogoThread(final File logoDir, final IdPMeta meta) {
-		super(logoDir, "fallback for " + meta.getEntityID());
+	public FallbackLogo(final File logoDir, final IdPMeta meta,
+			final int maxPaletteError) {
+		super(logoDir, maxPaletteError);
 		this.meta = meta;
 	}
 
@@ -44,10 +48,11 @@ public class FallbackLogoThread extends AbstractLogoConverter {
 				// file exists, but is empty. try to recreate it.
 				file.delete();
 
-			if (!file.exists()) {
+			if (!isComplete(file)) {
 				final BufferedImage img = ident.getSymmetricalIcon(meta
 						.getEntityHash());
-				final BufferedImage transp = whiteToTransparency(img);
+				final Map<LogoSize, BufferedImage> transp = whiteToTransparency(
+						img);
 				writeTo(transp, file);
 			}
 		} catch (final IOException e) {
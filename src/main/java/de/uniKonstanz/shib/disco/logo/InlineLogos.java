@@ -0,0 +1,102 @@
+package de.uniKonstanz.shib.disco.logo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Provides logos as {@code data:} URIs, so that the buttons of the most likely
+ * IdPs can be shown without a request to the {@link LogosServlet} for each of
+ * them. Embedded discovery on third-party pages benefits the most, because
+ * the host page cannot start loading the logos before the discovery script
+ * has run.
+ * <p>
+ * Logo files never change, so the encoded logos are cached by filename, with
+ * the same expiry as in the {@link LogosServlet}. Logos that are too large to
+ * inline are cached as well, so they are only checked once. Logos that don't
+ * exist yet aren't cached, so they will be inlined once they have been
+ * converted.
+ */
+public class InlineLogos {
+	private static final Logger LOGGER = Logger.getLogger(InlineLogos.class
+			.getCanonicalName());
+	private static final String PREFIX = "data:image/png;base64,";
+	/**
+	 * Maximum size, in bytes, of an inlined logo. Most converted logos are just
+	 * a few kilobytes; any larger ones are linked instead of making every page
+	 * that much larger.
+	 */
+	private static final long MAX_SIZE = 8192;
+	/** Cached in place of logos that are too large to inline. */
+	private static final String TOO_LARGE = "";
+
+	private final File logoDir;
+	private final Cache<String, String> cache;
+
+	/**
+	 * @param logoDir
+	 *            logo cache directory
+	 */
+	public InlineLogos(final File logoDir) {
+		this.logoDir = logoDir;
+		cache = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.DAYS)
+				.softValues().build();
+	}
+
+	/**
+	 * Gets a logo as a {@code data:} URI.
+	 * 
+	 * @param filename
+	 *            filename of the logo, in any {@link LogoSize}
+	 * @return the {@code data:} URI, or <code>null</code> if the logo should
+	 *         be linked instead
+	 */
+	public String get(final String filename) {
+		String uri = cache.getIfPresent(filename);
+		if (uri == null) {
+			uri = getDataURI(filename);
+			if (uri == null)
+				// logo not converted yet. the LogosServlet knows what to do,
+				// and the logo is checked again on the next request.
+				return null;
+			// loading the same logo twice is harmless; both results are equal
+			cache.put(filename, uri);
+		}
+		if (TOO_LARGE.equals(uri))
+			return null;
+		return uri;
+	}
+
+	/**
+	 * Reads and encodes a logo.
+	 * 
+	 * @return the {@code data:} URI, {@link #TOO_LARGE}, or <code>null</code>
+	 *         if the logo doesn't exist or cannot be read
+	 */
+	private String getDataURI(final String filename) {
+		final File file = new File(logoDir, filename);
+		final long length = file.length();
+		if (length == 0)
+			// missing, or marking a logo that cannot be converted
+			return null;
+		if (length > MAX_SIZE)
+			return TOO_LARGE;
+
+		try (final InputStream in = new FileInputStream(file)) {
+			return PREFIX + BaseEncoding.base64().encode(ByteStreams
+					.toByteArray(in));
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "cannot read logo " + filename, e);
+			return null;
+		}
+	}
+}
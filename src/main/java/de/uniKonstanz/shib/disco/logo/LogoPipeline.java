@@ -0,0 +1,237 @@
+package de.uniKonstanz.shib.disco.logo;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.uniKonstanz.shib.disco.metadata.IdPMeta;
+
+/**
+ * Two-stage pipeline for logo updates. Downloads run in a bounded I/O stage,
+ * with a limit on concurrent downloads per host as well as overall; new logos
+ * are then converted in a CPU stage with one thread per core. This way, a full
+ * metadata load with thousands of IdPs queues up work instead of starting
+ * thousands of threads at once.
+ * <p>
+ * Each IdP has at most one logo update and one fallback logo queued or running
+ * at any time; further requests are dropped. The logo state is shared by all
+ * versions of an IdP, so this doesn't lose anything.
+ */
+public class LogoPipeline {
+	private static final Logger LOGGER = Logger.getLogger(LogoPipeline.class
+			.getCanonicalName());
+	/**
+	 * Time, in milliseconds, that a download waits for its host to become
+	 * available before going back to the end of the queue. Keeps a single host
+	 * with many logos from blocking all download threads.
+	 */
+	private static final long HOST_WAIT = 100;
+	/** Time, in seconds, that shutdown waits for running tasks. */
+	private static final long SHUTDOWN_WAIT = 10;
+	/**
+	 * Maximum number of logo downloads running at the same time from a single
+	 * host. Many federations host the logos of all their IdPs on one server.
+	 */
+	private static final int MAX_PER_HOST = 2;
+
+	private final File logoDir;
+	private final int maxPaletteError;
+	private final ThreadPoolExecutor downloads;
+	private final ThreadPoolExecutor conversions;
+	private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+	private final Set<IdPMeta> pendingLogos = Collections
+			.newSetFromMap(new ConcurrentHashMap<IdPMeta, Boolean>());
+	private final Set<IdPMeta> pendingFallbacks = Collections
+			.newSetFromMap(new ConcurrentHashMap<IdPMeta, Boolean>());
+
+	/**
+	 * @param logoDir
+	 *            logo cache directory
+	 * @param maxDownloads
+	 *            maximum number of logo downloads running at the same time
+	 * @param maxPaletteError
+	 *            maximum color error when writing palette PNGs; negative to
+	 *            disable palettes
+	 * @throws ServletException
+	 *             if the logo cache directory cannot be created
+	 */
+	public LogoPipeline(final File logoDir, final int maxDownloads,
+			final int maxPaletteError) throws ServletException {
+		this.logoDir = logoDir;
+		this.maxPaletteError = maxPaletteError;
+		logoDir.mkdirs();
+		if (!logoDir.isDirectory())
+			throw new ServletException("cannot create "
+					+ logoDir.getAbsolutePath());
+
+		// both stages use unbounded FIFO queues; the tasks are tiny until
+		// they run, and their number is bounded by the number of IdPs
+		// thanks to deduplication.
+		downloads = new ThreadPoolExecutor(maxDownloads, maxDownloads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("logo download %d")
+						.setDaemon(true).build());
+		downloads.allowCoreThreadTimeOut(true);
+		final int cores = Runtime.getRuntime().availableProcessors();
+		conversions = new ThreadPoolExecutor(cores, cores, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("logo converter %d")
+						.setDaemon(true).build());
+		conversions.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a logo update for an IdP, unless one is already queued.
+	 * 
+	 * @param meta
+	 *            {@link IdPMeta} whose logo will be updated
+	 * @param url
+	 *            logo source URL
+	 */
+	public void updateLogo(final IdPMeta meta, final String url) {
+		if (!pendingLogos.add(meta))
+			return;
+		submit(downloads, new Download(new LogoUpdater(logoDir, meta, url,
+				maxPaletteError)),
+				pendingLogos, meta);
+	}
+
+	/**
+	 * Queues creation of the fallback logo for an IdP, unless it is already
+	 * queued.
+	 * 
+	 * @param meta
+	 *            {@link IdPMeta} whose fallback logo will be created
+	 */
+	public void createFallbackLogo(final IdPMeta meta) {
+		if (!pendingFallbacks.add(meta))
+			return;
+		final FallbackLogo fallback = new FallbackLogo(logoDir, meta,
+				maxPaletteError);
+		submit(conversions, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fallback.run();
+				} finally {
+					pendingFallbacks.remove(meta);
+				}
+			}
+		}, pendingFallbacks, meta);
+	}
+
+	/**
+	 * Stops both stages, abandoning all queued logos, and waits a while for
+	 * running tasks to finish. Logos that aren't updated now will simply be
+	 * updated after the next start.
+	 */
+	public void shutdown() {
+		downloads.shutdownNow();
+		conversions.shutdownNow();
+		try {
+			if (!downloads.awaitTermination(SHUTDOWN_WAIT, TimeUnit.SECONDS)
+					|| !conversions.awaitTermination(SHUTDOWN_WAIT,
+							TimeUnit.SECONDS))
+				LOGGER.warning("logo pipeline still busy after shutdown");
+		} catch (final InterruptedException e) {
+			LOGGER.log(Level.SEVERE, "logo pipeline shutdown failed", e);
+		}
+	}
+
+	private static void submit(final ThreadPoolExecutor stage,
+			final Runnable task, final Set<IdPMeta> pending,
+			final IdPMeta meta) {
+		try {
+			stage.execute(task);
+		} catch (final RejectedExecutionException e) {
+			// shutting down; the logo will be updated after the next start
+			pending.remove(meta);
+		}
+	}
+
+	private Semaphore getHostLimit(final String url) {
+		String host;
+		try {
+			host = new URL(url).getHost().toLowerCase();
+		} catch (final MalformedURLException e) {
+			// download will fail anyway; just don't crash the pipeline
+			host = "";
+		}
+		final Semaphore limit = hosts.get(host);
+		if (limit != null)
+			return limit;
+		final Semaphore created = new Semaphore(MAX_PER_HOST);
+		final Semaphore existing = hosts.putIfAbsent(host, created);
+		return existing != null ? existing : created;
+	}
+
+	/**
+	 * I/O stage of a {@link LogoUpdater}. Hands the logo over to the CPU
+	 * stage if there is a new one.
+	 */
+	private class Download implements Runnable {
+		private final LogoUpdater updater;
+		private final Semaphore host;
+
+		private Download(final LogoUpdater updater) {
+			this.updater = updater;
+			host = getHostLimit(updater.getURL());
+		}
+
+		@Override
+		public void run() {
+			final IdPMeta meta = updater.getMetadata();
+			try {
+				if (!host.tryAcquire(HOST_WAIT, TimeUnit.MILLISECONDS)) {
+					// host busy; let the other hosts go first
+					submit(downloads, this, pendingLogos, meta);
+					return;
+				}
+			} catch (final InterruptedException e) {
+				// shutting down
+				pendingLogos.remove(meta);
+				return;
+			}
+
+			final boolean convert;
+			try {
+				convert = updater.download();
+			} catch (final RuntimeException e) {
+				pendingLogos.remove(meta);
+				throw e;
+			} finally {
+				host.release();
+			}
+			if (!convert) {
+				pendingLogos.remove(meta);
+				return;
+			}
+
+			submit(conversions, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						updater.convert();
+					} finally {
+						pendingLogos.remove(meta);
+					}
+				}
+			}, pendingLogos, meta);
+		}
+	}
+}
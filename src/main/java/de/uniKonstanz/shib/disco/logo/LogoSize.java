@@ -0,0 +1,64 @@
+package de.uniKonstanz.shib.disco.logo;
+
+/**
+ * Sizes in which every logo is stored. The buttons display logos at 20ex by
+ * 10ex, roughly 150x75 pixels, so {@link #SMALL} is enough for ordinary
+ * screens while {@link #NORMAL} and {@link #LARGE} look sharp on high-resolution
+ * screens. All sizes of a logo are named after its {@link #NORMAL} file, with
+ * a suffix before the {@code .png} extension.
+ * <p>
+ * Declared from large to small, which is the order in which they are
+ * generated.
+ */
+public enum LogoSize {
+	LARGE("-2x", 600), NORMAL("", 300), SMALL("-small", 150);
+
+	private static final String EXTENSION = ".png";
+
+	private final String suffix;
+	private final int width;
+
+	private LogoSize(final String suffix, final int width) {
+		this.suffix = suffix;
+		this.width = width;
+	}
+
+	/**
+	 * @return width of the logo, including the 1px border
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return height of the logo, including the 1px border
+	 */
+	public int getHeight() {
+		return width / 2;
+	}
+
+	/**
+	 * @param filename
+	 *            filename of the {@link #NORMAL} logo, ending in {@code .png}
+	 * @return filename of the logo in this size
+	 */
+	public String getFilename(final String filename) {
+		return filename.substring(0, filename.length() - EXTENSION.length())
+				+ suffix + EXTENSION;
+	}
+
+	/**
+	 * @param filename
+	 *            filename of a logo in any size, ending in {@code .png}
+	 * @return filename of the {@link #NORMAL} logo
+	 */
+	public static String getBaseFilename(final String filename) {
+		for (final LogoSize size : values())
+			if (!size.suffix.isEmpty()
+					&& filename.endsWith(size.suffix + EXTENSION))
+				return filename.substring(0, filename.length()
+						- size.suffix.length() - EXTENSION.length())
+						+ EXTENSION;
+		return filename;
+	}
+}
@@ -0,0 +1,313 @@
+package de.uniKonstanz.shib.disco.logo;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.utils.DateUtils;
+
+import de.uniKonstanz.shib.disco.metadata.IdPMeta;
+import de.uniKonstanz.shib.disco.util.CacheValidator;
+import de.uniKonstanz.shib.disco.util.HTTP;
+
+/**
+ * Performs loading and conversion of IdP logos. If anything goes wrong, it
+ * just doesn't set the logo at all, which effectively means keeping the
+ * previous logo.
+ * <p>
+ * Runs in two stages of the {@link LogoPipeline}: {@link #download()} in the
+ * I/O stage, then {@link #convert()} in the CPU stage if there is a new logo
+ * to convert.
+ */
+public class LogoUpdater extends AbstractLogoConverter {
+	private static final Logger LOGGER = Logger.getLogger(LogoUpdater.class
+			.getCanonicalName());
+	/**
+	 * Maximum acceptable filesize for an IdP logo. Anything larger is assumed
+	 * to be an error, either on the server, or by the operator.
+	 */
+	private static final int MAX_LOGO_SIZE = 250000;
+
+	private final String url;
+	private final IdPMeta meta;
+	private final File nameCache;
+	private CacheValidator validator;
+	private long beforeDownload;
+	private byte[] bytes;
+
+	/**
+	 * @param logoDir
+	 *            logo cache directory where files are created
+	 * @param meta
+	 *            {@link IdPMeta} whose logo will be delay-loaded
+	 * @param url
+	 *            logo source URL
+	 * @param maxPaletteError
+	 *            maximum color error when writing palette PNGs; negative to
+	 *            disable palettes
+	 */
+	public LogoUpdater(final File logoDir, final IdPMeta meta,
+			final String url, final int maxPaletteError) {
+		super(logoDir, maxPaletteError);
+		this.meta = meta;
+		this.url = url;
+		nameCache = new File(logoDir, meta.getEntityHash() + ".latest");
+	}
+
+	/** @return the logo source URL */
+	public String getURL() {
+		return url;
+	}
+
+	/** @return the {@link IdPMeta} whose logo is updated */
+	public IdPMeta getMetadata() {
+		return meta;
+	}
+
+	/**
+	 * I/O stage: downloads the logo. If it hasn't changed, or cannot be
+	 * downloaded, this already sets the cached logo, if any.
+	 * 
+	 * @return <code>true</code> if there is a new logo that has to be passed
+	 *         to {@link #convert()}
+	 */
+	public boolean download() {
+		try {
+			beforeDownload = System.currentTimeMillis();
+			validator = readValidator(nameCache);
+			bytes = readLogo(url, validator);
+			if (bytes != null)
+				return true;
+
+			if (nameCache.exists())
+				// logo hasn't changed, so just get the output filename from
+				// name cache instead
+				meta.setLogoFilename(readNameCache(nameCache));
+			// else no logo, no cache. there's nothing more we can do.
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "cannot read name cache for " + url, e);
+		}
+		return false;
+	}
+
+	/**
+	 * CPU stage: converts the logo downloaded by {@link #download()}, and
+	 * updates the name cache.
+	 */
+	public void convert() {
+		// successfully downloaded new logo. convert it and update name cache.
+		final String filename = DigestUtils.shaHex(bytes) + ".png";
+		try {
+			// keep previous logo if conversion fails
+			if (!convertLogo(bytes, filename))
+				return;
+			// only skip this version from now on if it was actually converted
+			validator.commit();
+			writeNameCache(filename, validator, nameCache, beforeDownload);
+			meta.setLogoFilename(filename);
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "cannot convert " + url, e);
+		} finally {
+			// the logo can be up to 250k; don't keep it around
+			bytes = null;
+		}
+	}
+
+	/**
+	 * Reads the cache validators from the name cache. The first line of the
+	 * name cache is the filename; the second and third lines, if present, are
+	 * the {@code ETag} and {@code Last-Modified} headers sent by the server.
+	 * Older name caches don't have these, so the file's own timestamp is used
+	 * as {@code Last-Modified} instead. If the logo is missing some
+	 * {@link LogoSize}s, the validators are ignored to force a download.
+	 */
+	private CacheValidator readValidator(final File nameCache)
+			throws IOException {
+		if (nameCache.exists() && nameCache.length() == 0) {
+			// corrupt file
+			nameCache.delete();
+			return new CacheValidator();
+		}
+		if (!nameCache.exists())
+			// no cache file. force download regardless of last modification
+			// time.
+			return new CacheValidator();
+
+		try (BufferedReader in = new BufferedReader(new FileReader(nameCache))) {
+			final String filename = in.readLine();
+			if (filename != null && filename.endsWith(".png")) {
+				final File logo = new File(logoDir, filename);
+				if (logo.length() > 0 && !isComplete(logo))
+					// converted before there were several sizes. download it
+					// again so that the missing sizes can be created.
+					return new CacheValidator();
+			}
+			final String etag = emptyToNull(in.readLine());
+			final String lastModified = emptyToNull(in.readLine());
+			if (etag == null && lastModified == null)
+				return new CacheValidator(null, DateUtils.formatDate(new Date(
+						nameCache.lastModified())));
+			return new CacheValidator(etag, lastModified);
+		}
+	}
+
+	private static String emptyToNull(final String line) {
+		if (line == null || line.isEmpty())
+			return null;
+		return line;
+	}
+
+	private void writeNameCache(final String filename,
+			final CacheValidator validator, final File cache,
+			final long timestamp) throws IOException {
+		final File temp = new File(cache.getParentFile(), cache.getName()
+				+ ".temp");
+		// make sure it's not a hardlink / symlink somewhere
+		temp.delete();
+		// write data and backdate the file to before the actual download took
+		// place
+		final FileWriter out = new FileWriter(temp);
+		out.write(filename + "\n");
+		out.write(nullToEmpty(validator.getETag()) + "\n");
+		out.write(nullToEmpty(validator.getLastModified()) + "\n");
+		out.close();
+		temp.setLastModified(timestamp);
+		// try to atomically overwrite the output file
+		if (temp.renameTo(cache))
+			return;
+
+		// if that didn't work, try again after getting rid of the output file
+		cache.delete();
+		if (temp.renameTo(cache))
+			return;
+
+		// cannot cache name. this is bad for performance, but won't hurt
+		// anything
+		LOGGER.log(Level.WARNING, "cannot rename " + temp.getAbsolutePath()
+				+ " to " + cache.getAbsolutePath());
+		// cleanup
+		temp.delete();
+	}
+
+	private static String nullToEmpty(final String value) {
+		// header values cannot contain newlines, so they need no escaping
+		return value != null ? value : "";
+	}
+
+	private String readNameCache(final File file) throws IOException {
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			return in.readLine();
+		}
+	}
+
+	private boolean convertLogo(final byte[] bytes, final String filename) {
+		final File file = new File(logoDir, filename);
+		if (file.length() > 0 && isComplete(file))
+			// we've seen this exact (binary-identical) file before. converting
+			// it again will not produce any materially different output.
+			// empty files mark unsuccessful conversion; non-empty files contain
+			// results of successful conversions.
+			return file.length() > 0;
+
+		final Map<LogoSize, BufferedImage> logos;
+		try {
+			logos = convertLogo(bytes);
+		} catch (final InconvertibleLogoException e) {
+			try {
+				// logo cannot be converted. trying again on the same, binary-
+				// identical logo won't produce a different result, so we mark
+				// the logo as unconvertable by creating an empty file.
+				new FileOutputStream(file).close();
+			} catch (final IOException e1) {
+				LOGGER.log(Level.WARNING,
+						"cannot create flag file " + file.getAbsolutePath(), e1);
+			}
+			return false;
+		}
+
+		// write results to PNG, using temp files to avoid incomplete files.
+		try {
+			writeTo(logos, file);
+			return true;
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "cannot write " + file.getAbsolutePath());
+			return false;
+		}
+	}
+
+	private static Map<LogoSize, BufferedImage> convertLogo(
+			final byte[] bytes)
+			throws InconvertibleLogoException {
+		try {
+			return whiteToTransparency(bytes);
+		} catch (final OutOfMemoryError e) {
+			// probably caused by excessive image size. retrying probably won't
+			// work.
+			throw new InconvertibleLogoException("out of memory", e);
+		} catch (final InconvertibleLogoException e) {
+			// don't wrap that one in another exception...
+			throw e;
+		} catch (final Throwable e) {
+			// note: catching everything here. whiteToTransparency has no
+			// external dependencies and cannot leave anything in an
+			// inconsistent state, so it is better to isolate errors within that
+			// method than to crash the entire servlet.
+			throw new InconvertibleLogoException("cannot convert: "
+					+ e.getClass().getCanonicalName() + ": " + e.getMessage(),
+					e);
+		}
+	}
+
+	/**
+	 * Downloads the logo, with strict timeouts. Retries over HTTP if HTTPS
+	 * fails due to IdP operator incompetence. If the logo didn't change since
+	 * last time we downloaded it, or there were {@link IOException}s, returns
+	 * <code>null</code>.
+	 * 
+	 * @param url
+	 *            source URL
+	 * @param validator
+	 *            {@link CacheValidator} from the last successful logo download
+	 * @return logo as a byte array, or <code>null</code>
+	 * 
+	 */
+	private static byte[] readLogo(final String url,
+			final CacheValidator validator) {
+		try {
+			return HTTP.getBytes(url, MAX_LOGO_SIZE, validator);
+		} catch (final IOException e) {
+			// short warning; logos are somewhat expected to be unavailable
+			// "just occasionally"
+			LOGGER.warning("read error for " + url + ": "
+					+ e.getClass().getCanonicalName() + ": " + e.getMessage());
+		}
+
+		// if SSL fails for some reason, try again over plain old insecure HTTP.
+		// for an image, this shouldn't pose a significant security risk: the
+		// logo can be substituted with something embarrassing, but no important
+		// data will be leaked or at risk.
+		if (url.toLowerCase().startsWith("https://")) {
+			final String insecure = "http://" + url.substring(8);
+			try {
+				return HTTP.getBytes(insecure, MAX_LOGO_SIZE, validator);
+			} catch (final IOException httpException) {
+				// if HTTP download doesn't work, that's ok: the logo was
+				// declared as https after all. therefore, silently swallow the
+				// error for the fallback. the error for the original SSL
+				// request has already been reported anyway.
+			}
+		}
+
+		// give up
+		return null;
+	}
+}
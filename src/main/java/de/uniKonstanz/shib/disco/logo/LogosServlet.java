@@ -26,7 +26,12 @@ import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
  * I/O overhead. Files persist until they aren't accessed for a day, but IdP
  * logos are named after a hash of the file contents, so if the logo for an IdP
  * changes, that change will be visible immediately.
- * 
+ * <p>
+ * Logos converted before {@link LogoSize}s were introduced only exist in
+ * {@link LogoSize#NORMAL} size until they are converted again on their next
+ * update. Until then, requests for the other sizes of these logos are served
+ * the normal logo instead; the browser scales it as necessary.
+ * <p>
  * Also note that there is no automatic cleanup of the logo cache directory,
  * because it isn't expected to fill too quickly. Nevertheless, emptying it
  * about once a year may be a good idea.
@@ -37,6 +42,11 @@ public class LogosServlet extends AbstractShibbolethServlet {
 			.getCanonicalName());
 	/** Filename of the generic logo in the logo "directory". */
 	public static final String GENERIC_LOGO = "generic.png";
+	/**
+	 * Time, in seconds, that a normal logo served for a missing size may be
+	 * cached. The missing size is created on the next logo update.
+	 */
+	private static final int SUBSTITUTE_MAX_AGE = 24 * 60 * 60;
 	public File logoCache;
 	private LoadingCache<String, byte[]> cache;
 	private byte[] generic;
@@ -79,22 +89,41 @@ public class LogosServlet extends AbstractShibbolethServlet {
 			return;
 		}
 
+		// other sizes of the generic logo are just the generic logo. for
+		// other logos, fall back to the normal size if the requested one
+		// hasn't been created. logos already in memory obviously exist, so
+		// checking costs a stat only when the logo is read from disk anyway.
+		final String base = LogoSize.getBaseFilename(filename);
+		String logo = filename;
+		int maxAge = Integer.MAX_VALUE;
+		boolean substitute = false;
+		if (base.equals(GENERIC_LOGO))
+			logo = GENERIC_LOGO;
+		else if (!base.equals(filename) && cache.getIfPresent(filename) == null
+				&& !new File(logoCache, filename).exists()) {
+			logo = base;
+			maxAge = SUBSTITUTE_MAX_AGE;
+			substitute = true;
+		}
+
 		// logos are immutable. therefore, if this is a cache revalidation, just
-		// return 304 immediately.
-		if (req.getHeaders("If-Modified-Since").hasMoreElements()) {
+		// return 304 immediately. that doesn't hold for a substitute, though:
+		// the browser has to get the requested size once it exists.
+		if (!substitute
+				&& req.getHeaders("If-Modified-Since").hasMoreElements()) {
 			resp.sendError(HttpServletResponse.SC_NOT_MODIFIED);
 			return;
 		}
 
 		byte[] data;
-		if (!filename.equals(GENERIC_LOGO))
-			data = getLogo(filename);
+		if (!logo.equals(GENERIC_LOGO))
+			data = getLogo(logo);
 		else
 			data = generic;
 		// logo files are named according to their contents, so they never
 		// change. allow client to cache them forever.
 		if (data != null)
-			setCacheHeaders(resp, Integer.MAX_VALUE);
+			setCacheHeaders(resp, maxAge);
 
 		// if a named logo is unavailable, substitute the generic logo, but
 		// prevent that from being cached.
@@ -0,0 +1,214 @@
+package de.uniKonstanz.shib.disco.logo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces ARGB logos to at most 256 colors, so that they can be stored as an
+ * 8-bit palette PNG, with alpha in the {@code tRNS} chunk. That is a fraction
+ * of the size of a 32-bit ARGB PNG, and most logos have just a few colors plus
+ * the antialiasing between them.
+ * <p>
+ * Uses median cut: starting with a single box containing all colors, the box
+ * with the widest range in any channel is repeatedly split at the median of
+ * that channel, until there are 256 boxes. Each box then becomes a palette
+ * entry. Images with at most 256 colors are thus converted losslessly.
+ */
+final class PaletteQuantizer {
+	private static final int MAX_COLORS = 256;
+
+	private PaletteQuantizer() {
+	}
+
+	/**
+	 * Converts an image to a palette image, if that's possible without
+	 * changing any pixel by more than the given error. The error of a pixel is
+	 * the largest difference in any channel, with the color channels weighted
+	 * by alpha: color doesn't matter much for nearly transparent pixels.
+	 * 
+	 * @param image
+	 *            input image, in any color space
+	 * @param maxError
+	 *            maximum acceptable error of any pixel, between 0 (lossless)
+	 *            and 255
+	 * @return a {@link BufferedImage#TYPE_BYTE_INDEXED} version of the image,
+	 *         or <code>null</code> if it needs too many colors
+	 */
+	static BufferedImage quantize(final BufferedImage image, final int maxError) {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+		// histogram of distinct colors, as parallel arrays. boxes are ranges
+		// in these arrays.
+		final int[] sorted = pixels.clone();
+		Arrays.sort(sorted);
+		final int[] colors = new int[sorted.length];
+		final int[] counts = new int[sorted.length];
+		int n = 0;
+		for (final int color : sorted)
+			if (n > 0 && colors[n - 1] == color)
+				counts[n - 1]++;
+			else {
+				colors[n] = color;
+				counts[n] = 1;
+				n++;
+			}
+
+		final List<Box> boxes = new ArrayList<Box>();
+		boxes.add(new Box(colors, 0, n));
+		final int[] tempColors = new int[n];
+		final int[] tempCounts = new int[n];
+		while (boxes.size() < MAX_COLORS) {
+			Box widest = null;
+			for (final Box box : boxes)
+				if (box.range > 0
+						&& (widest == null || box.range > widest.range))
+					widest = box;
+			if (widest == null)
+				// every box is a single color; palette is exact
+				break;
+			sortByChannel(colors, counts, widest, tempColors, tempCounts);
+			final int median = weightedMedian(counts, widest);
+			boxes.add(new Box(colors, median, widest.to));
+			widest.to = median;
+			widest.updateRange(colors);
+		}
+
+		// average color of each box becomes its palette entry
+		final byte[] a = new byte[boxes.size()];
+		final byte[] r = new byte[boxes.size()];
+		final byte[] g = new byte[boxes.size()];
+		final byte[] b = new byte[boxes.size()];
+		final Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+		for (int i = 0; i < boxes.size(); i++) {
+			final Box box = boxes.get(i);
+			final int entry = average(colors, counts, box);
+			a[i] = (byte) (entry >>> 24);
+			r[i] = (byte) (entry >> 16);
+			g[i] = (byte) (entry >> 8);
+			b[i] = (byte) entry;
+			for (int j = box.from; j < box.to; j++) {
+				if (error(colors[j], entry) > maxError)
+					return null;
+				index.put(colors[j], i);
+			}
+		}
+
+		final IndexColorModel palette = new IndexColorModel(8, boxes.size(),
+				r, g, b, a);
+		final BufferedImage indexed = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, palette);
+		final byte[] data = ((DataBufferByte) indexed.getRaster()
+				.getDataBuffer()).getData();
+		for (int i = 0; i < pixels.length; i++)
+			data[i] = (byte) (int) index.get(pixels[i]);
+		return indexed;
+	}
+
+	/**
+	 * Stable counting sort of a box by its widest channel. Colors only have
+	 * 256 values per channel, so this is linear in the size of the box.
+	 */
+	private static void sortByChannel(final int[] colors, final int[] counts,
+			final Box box, final int[] tempColors, final int[] tempCounts) {
+		final int shift = box.channel;
+		final int[] offsets = new int[257];
+		for (int i = box.from; i < box.to; i++)
+			offsets[((colors[i] >>> shift) & 0xff) + 1]++;
+		for (int v = 1; v < offsets.length; v++)
+			offsets[v] += offsets[v - 1];
+		for (int i = box.from; i < box.to; i++) {
+			final int k = offsets[(colors[i] >>> shift) & 0xff]++;
+			tempColors[k] = colors[i];
+			tempCounts[k] = counts[i];
+		}
+		System.arraycopy(tempColors, 0, colors, box.from, box.to - box.from);
+		System.arraycopy(tempCounts, 0, counts, box.from, box.to - box.from);
+	}
+
+	/**
+	 * @return the index that splits the pixels of a sorted box into two halves,
+	 *         leaving at least one color on either side
+	 */
+	private static int weightedMedian(final int[] counts, final Box box) {
+		long total = 0;
+		for (int i = box.from; i < box.to; i++)
+			total += counts[i];
+		long half = 0;
+		int median = box.from + 1;
+		while (median < box.to - 1) {
+			half += counts[median - 1];
+			if (2 * half >= total)
+				break;
+			median++;
+		}
+		return median;
+	}
+
+	private static int average(final int[] colors, final int[] counts,
+			final Box box) {
+		long total = 0;
+		final long[] sums = new long[4];
+		for (int i = box.from; i < box.to; i++) {
+			total += counts[i];
+			for (int c = 0; c < 4; c++)
+				sums[c] += (long) ((colors[i] >>> 8 * c) & 0xff) * counts[i];
+		}
+		int color = 0;
+		for (int c = 0; c < 4; c++)
+			color |= (int) ((sums[c] + total / 2) / total) << 8 * c;
+		return color;
+	}
+
+	private static int error(final int color, final int entry) {
+		final int alpha = color >>> 24;
+		int error = Math.abs(alpha - (entry >>> 24));
+		for (int shift = 0; shift < 24; shift += 8) {
+			final int diff = Math.abs(((color >> shift) & 0xff)
+					- ((entry >> shift) & 0xff));
+			error = Math.max(error, diff * alpha / 255);
+		}
+		return error;
+	}
+
+	/**
+	 * Range of colors in the histogram, with the channel (as a bit shift) in
+	 * which they differ the most.
+	 */
+	private static class Box {
+		private final int from;
+		private int to;
+		private int channel;
+		private int range;
+
+		private Box(final int[] colors, final int from, final int to) {
+			this.from = from;
+			this.to = to;
+			updateRange(colors);
+		}
+
+		private void updateRange(final int[] colors) {
+			range = 0;
+			for (int shift = 0; shift < 32; shift += 8) {
+				int min = 255;
+				int max = 0;
+				for (int i = from; i < to; i++) {
+					final int v = (colors[i] >>> shift) & 0xff;
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				}
+				if (max - min > range) {
+					range = max - min;
+					channel = shift;
+				}
+			}
+		}
+	}
+}
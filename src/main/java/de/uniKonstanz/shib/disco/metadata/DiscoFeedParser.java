@@ -0,0 +1,68 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import de.uniKonstanz.shib.disco.util.HTTP;
+
+/**
+ * Streaming parser for the JSON DiscoFeed of an SP. Only the {@code entityID}
+ * of each IdP is extracted; display names, logos and descriptions, which make
+ * up almost all of a DiscoFeed, are skipped token by token without ever being
+ * turned into objects. Everything else is read directly from the XML metadata
+ * anyway.
+ * <p>
+ * Jackson detects the encoding from the first bytes, which covers all
+ * encodings that JSON permits.
+ */
+class DiscoFeedParser implements HTTP.EntityParser<List<String>> {
+	private static final String ENTITY_ID = "entityID";
+	/** {@link JsonFactory} is thread safe once configured. */
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	@Override
+	public List<String> parse(final InputStream in) throws IOException {
+		final JsonParser json = FACTORY.createJsonParser(in);
+		try {
+			if (json.nextToken() != JsonToken.START_ARRAY)
+				throw new IOException("DiscoFeed is not a JSON array");
+
+			final List<String> ids = new ArrayList<String>();
+			JsonToken token;
+			while ((token = json.nextToken()) != JsonToken.END_ARRAY) {
+				if (token == null)
+					throw new IOException("truncated DiscoFeed");
+				if (token != JsonToken.START_OBJECT) {
+					// not an IdP; ignore whatever it is
+					json.skipChildren();
+					continue;
+				}
+				parseIdP(json, ids);
+			}
+			return ids;
+		} finally {
+			json.close();
+		}
+	}
+
+	private static void parseIdP(final JsonParser json, final List<String> ids)
+			throws IOException {
+		while (json.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = json.getCurrentName();
+			final JsonToken value = json.nextToken();
+			if (ENTITY_ID.equals(field) && value == JsonToken.VALUE_STRING)
+				ids.add(json.getText());
+			else
+				// skips entire objects and arrays; no-op for scalars
+				json.skipChildren();
+		}
+		if (json.getCurrentToken() != JsonToken.END_OBJECT)
+			throw new IOException("truncated DiscoFeed");
+	}
+}
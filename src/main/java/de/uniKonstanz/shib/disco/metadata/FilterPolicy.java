@@ -0,0 +1,47 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Locally evaluated filter for a single SP, as configured in the
+ * {@link FilterRules}. An IdP is accepted if it matches any of the rules:
+ * registered by one of the registration authorities, declaring one of the
+ * entity categories, or explicitly listed by entityID.
+ * <p>
+ * Compared by identity; {@link MetadataSnapshot} caches the resolved IdPs per
+ * policy object.
+ */
+class FilterPolicy {
+	private final Set<String> registrationAuthorities = new HashSet<String>();
+	private final Set<String> entityCategories = new HashSet<String>();
+	private final Set<String> entityIDs = new HashSet<String>();
+	private boolean acceptAll;
+
+	/** @return registration authorities whose IdPs are accepted */
+	public Set<String> getRegistrationAuthorities() {
+		return registrationAuthorities;
+	}
+
+	/** @return entity categories whose IdPs are accepted */
+	public Set<String> getEntityCategories() {
+		return entityCategories;
+	}
+
+	/** @return entityIDs of individually accepted IdPs */
+	public Set<String> getEntityIDs() {
+		return entityIDs;
+	}
+
+	/**
+	 * @return <code>true</code> if the SP accepts all IdPs, ie. needs no
+	 *         filtering at all
+	 */
+	public boolean isAcceptAll() {
+		return acceptAll;
+	}
+
+	public void setAcceptAll(final boolean acceptAll) {
+		this.acceptAll = acceptAll;
+	}
+}
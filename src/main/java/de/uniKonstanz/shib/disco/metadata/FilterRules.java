@@ -0,0 +1,108 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Operator-defined filter rules, per SP entityID. SPs listed here have their
+ * filter computed locally from the metadata instead of fetching their
+ * DiscoFeed, which takes the network out of the request path for them. All
+ * other SPs still use the DiscoFeed.
+ * <p>
+ * The file contains one rule per line: the SP entityID, the rule type and
+ * (except for {@code all}) its value, separated by whitespace. Several rules
+ * for the same SP are combined, ie. an IdP is accepted if it matches any of
+ * them. Empty lines and lines starting with {@code #} are ignored. Rule types
+ * are:
+ * <ul>
+ * <li>{@code registrationAuthority}: accepts all IdPs registered by that
+ * authority, as declared in {@code <mdrpi:RegistrationInfo>}
+ * <li>{@code entityCategory}: accepts all IdPs that declare that entity
+ * category
+ * <li>{@code idp}: accepts a single IdP by entityID
+ * <li>{@code all}: accepts all IdPs, ie. disables filtering
+ * </ul>
+ */
+public class FilterRules {
+	/** Rules used when no rules file is configured. */
+	public static final FilterRules EMPTY = new FilterRules(
+			Collections.<String, FilterPolicy> emptyMap());
+
+	private final Map<String, FilterPolicy> policies;
+
+	private FilterRules(final Map<String, FilterPolicy> policies) {
+		this.policies = policies;
+	}
+
+	/**
+	 * Reads a rules file.
+	 * 
+	 * @param file
+	 *            the rules file, in UTF-8
+	 * @return the parsed {@link FilterRules}
+	 * @throws IOException
+	 *             if the file cannot be read or contains invalid rules
+	 */
+	public static FilterRules load(final File file) throws IOException {
+		final Map<String, FilterPolicy> policies = new HashMap<String, FilterPolicy>();
+		try (final BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file),
+						Charsets.UTF_8))) {
+			int lineNumber = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				final String[] fields = line.split("\\s+");
+				FilterPolicy policy = policies.get(fields[0]);
+				if (policy == null) {
+					policy = new FilterPolicy();
+					policies.put(fields[0], policy);
+				}
+				if (fields.length == 2 && fields[1].equals("all"))
+					policy.setAcceptAll(true);
+				else if (fields.length != 3)
+					throw new IOException(file.getAbsolutePath() + ":"
+							+ lineNumber + ": invalid rule: " + line);
+				else if (fields[1].equals("registrationAuthority"))
+					policy.getRegistrationAuthorities().add(fields[2]);
+				else if (fields[1].equals("entityCategory"))
+					policy.getEntityCategories().add(fields[2]);
+				else if (fields[1].equals("idp"))
+					policy.getEntityIDs().add(fields[2]);
+				else
+					throw new IOException(file.getAbsolutePath() + ":"
+							+ lineNumber + ": unknown rule type " + fields[1]);
+			}
+		}
+		return new FilterRules(policies);
+	}
+
+	/**
+	 * Gets the rules for an SP.
+	 * 
+	 * @param entityID
+	 *            entityID of the SP
+	 * @return the SP's {@link FilterPolicy}, or <code>null</code> if the SP has
+	 *         to use its DiscoFeed
+	 */
+	FilterPolicy get(final String entityID) {
+		return policies.get(entityID);
+	}
+
+	/** @return number of SPs with local rules */
+	public int size() {
+		return policies.size();
+	}
+}
@@ -0,0 +1,186 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ImmutableSet;
+
+import de.uniKonstanz.shib.disco.util.CacheValidator;
+
+/**
+ * Snapshot of the entityIDs accepted by each {@link IdPFilter}, so that
+ * filters are usable immediately after a restart instead of making the first
+ * visitor of every SP wait for its DiscoFeed. Restored filters are stale and
+ * get refreshed in the background; their {@link CacheValidator}s are restored
+ * as well, so that the refresh is usually just a {@code 304 Not Modified}.
+ * <p>
+ * Most SPs accept exactly the same IdPs, so each distinct set of entityIDs is
+ * stored only once and referenced by index.
+ */
+class FilterStore {
+	private static final Logger LOGGER = Logger.getLogger(FilterStore.class
+			.getCanonicalName());
+	private static final int MAGIC = 0x66696c74;
+	private static final int VERSION = 1;
+	/**
+	 * Snapshots older than the filter cache expiry are ignored; the filters
+	 * they contain would have expired anyway.
+	 */
+	private static final long MAX_AGE = 4 * 24 * 60 * 60 * 1000;
+
+	private final File file;
+
+	/**
+	 * @param file
+	 *            location of the snapshot file
+	 */
+	public FilterStore(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Atomically replaces the snapshot with the given filters. Filters that
+	 * have never been updated successfully are skipped.
+	 * 
+	 * @param filters
+	 *            the {@link IdPFilter}s to save
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public void save(final Collection<IdPFilter> filters) throws IOException {
+		final Map<ImmutableSet<String>, Integer> index = new HashMap<ImmutableSet<String>, Integer>();
+		final List<ImmutableSet<String>> sets = new ArrayList<ImmutableSet<String>>();
+		// the entityIDs may be replaced by a concurrent update at any time, so
+		// they are read exactly once per filter
+		final List<IdPFilter> usable = new ArrayList<IdPFilter>();
+		final List<ImmutableSet<String>> usableIDs = new ArrayList<ImmutableSet<String>>();
+		for (final IdPFilter filter : filters) {
+			final ImmutableSet<String> ids = filter.getEntityIDs();
+			if (ids == null)
+				continue;
+			usable.add(filter);
+			usableIDs.add(ids);
+			if (!index.containsKey(ids)) {
+				index.put(ids, sets.size());
+				sets.add(ids);
+			}
+		}
+
+		final File temp = new File(file.getParentFile(), file.getName()
+				+ ".tmp");
+		temp.delete();
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sets.size());
+			for (final Set<String> ids : sets) {
+				out.writeInt(ids.size());
+				for (final String entityID : ids)
+					out.writeUTF(entityID);
+			}
+			out.writeInt(usable.size());
+			for (int i = 0; i < usable.size(); i++) {
+				final IdPFilter filter = usable.get(i);
+				out.writeUTF(filter.getURL());
+				writeOptional(out, filter.getValidator().getETag());
+				writeOptional(out, filter.getValidator().getLastModified());
+				out.writeInt(index.get(usableIDs.get(i)));
+			}
+		}
+		if (!temp.renameTo(file)) {
+			// rename doesn't overwrite on some platforms
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("cannot rename " + temp.getAbsolutePath()
+						+ " to " + file.getAbsolutePath());
+		}
+		LOGGER.fine("saved " + usable.size() + " filters (" + sets.size()
+				+ " distinct) to " + file.getAbsolutePath());
+	}
+
+	private static void writeOptional(final DataOutputStream out,
+			final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	/**
+	 * Restores the filters saved by {@link #save(Collection)}. Missing,
+	 * outdated or corrupt snapshots are ignored.
+	 * 
+	 * @param meta
+	 *            the {@link MetadataUpdateThread} that owns the filters
+	 * @return the restored {@link IdPFilter}s; empty if there is no usable
+	 *         snapshot
+	 */
+	public List<IdPFilter> load(final MetadataUpdateThread meta) {
+		final List<IdPFilter> filters = new ArrayList<IdPFilter>();
+		if (!file.exists())
+			return filters;
+		if (System.currentTimeMillis() - file.lastModified() > MAX_AGE) {
+			LOGGER.info("ignoring outdated filter snapshot "
+					+ file.getAbsolutePath());
+			return filters;
+		}
+
+		try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				LOGGER.info("ignoring incompatible filter snapshot "
+						+ file.getAbsolutePath());
+				return filters;
+			}
+			final List<Set<String>> sets = new ArrayList<Set<String>>();
+			final int numSets = in.readInt();
+			for (int i = 0; i < numSets; i++) {
+				final int size = in.readInt();
+				final Set<String> ids = new LinkedHashSet<String>();
+				for (int j = 0; j < size; j++)
+					ids.add(in.readUTF());
+				sets.add(ids);
+			}
+			final int numFilters = in.readInt();
+			for (int i = 0; i < numFilters; i++) {
+				final String url = in.readUTF();
+				final CacheValidator validator = new CacheValidator(
+						readOptional(in), readOptional(in));
+				filters.add(new IdPFilter(meta, url, sets.get(in.readInt()),
+						validator));
+			}
+		} catch (final IOException | IndexOutOfBoundsException e) {
+			// corrupt snapshot. not a problem; the filters will simply be
+			// downloaded as usual.
+			LOGGER.log(Level.WARNING, "cannot read filter snapshot "
+					+ file.getAbsolutePath(), e);
+			filters.clear();
+			return filters;
+		}
+		LOGGER.info("restored " + filters.size() + " filters from "
+				+ file.getAbsolutePath());
+		return filters;
+	}
+
+	private static String readOptional(final DataInputStream in)
+			throws IOException {
+		if (!in.readBoolean())
+			return null;
+		return in.readUTF();
+	}
+}
@@ -0,0 +1,144 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Raw metadata for a single IdP, as extracted from the metadata XML. Contains
+ * only the parts that the discovery actually uses: the display names and the
+ * logos, plus the registration authority and entity categories for local
+ * {@link FilterPolicy filter policies}. Interpretation is left to
+ * {@link IdPMetaParser}.
+ */
+class IdPDescriptor {
+	private final String entityID;
+	private final List<DisplayName> displayNames = new ArrayList<DisplayName>();
+	private final List<Logo> logos = new ArrayList<Logo>();
+	private final List<String> entityCategories = new ArrayList<String>();
+	private String registrationAuthority = "";
+
+	public IdPDescriptor(final String entityID) {
+		this.entityID = entityID;
+	}
+
+	public String getEntityID() {
+		return entityID;
+	}
+
+	/** @return all declared display names, in document order */
+	public List<DisplayName> getDisplayNames() {
+		return displayNames;
+	}
+
+	/** @return all declared logos, in document order */
+	public List<Logo> getLogos() {
+		return logos;
+	}
+
+	/**
+	 * @return the {@code registrationAuthority} of the
+	 *         {@code <mdrpi:RegistrationInfo>}; empty if there is none
+	 */
+	public String getRegistrationAuthority() {
+		return registrationAuthority;
+	}
+
+	public void setRegistrationAuthority(final String registrationAuthority) {
+		this.registrationAuthority = registrationAuthority;
+	}
+
+	/** @return all declared entity categories, in document order */
+	public List<String> getEntityCategories() {
+		return entityCategories;
+	}
+
+	/**
+	 * Computes a hash over all content of the descriptor. If the hash is
+	 * unchanged between two metadata updates, the IdP doesn't need to be
+	 * processed again.
+	 * 
+	 * @return hash of entityID, display names, logos, registration authority
+	 *         and entity categories
+	 */
+	public HashCode getContentHash() {
+		// strings are length-prefixed so that different sequences of strings
+		// cannot produce the same input to the hash function
+		final Hasher hasher = Hashing.sha1().newHasher();
+		hash(hasher, entityID);
+		hasher.putInt(displayNames.size());
+		for (final DisplayName name : displayNames) {
+			hash(hasher, name.getLanguage());
+			hash(hasher, name.getName());
+		}
+		hasher.putInt(logos.size());
+		for (final Logo logo : logos) {
+			hash(hasher, logo.getWidth());
+			hash(hasher, logo.getHeight());
+			hash(hasher, logo.getURL());
+		}
+		hash(hasher, registrationAuthority);
+		hasher.putInt(entityCategories.size());
+		for (final String category : entityCategories)
+			hash(hasher, category);
+		return hasher.hash();
+	}
+
+	private static void hash(final Hasher hasher, final String value) {
+		hasher.putInt(value.length()).putUnencodedChars(value);
+	}
+
+	/**
+	 * A {@code <mdui:DisplayName>}. Both values are never <code>null</code>,
+	 * but may be empty.
+	 */
+	public static class DisplayName {
+		private final String lang;
+		private final String name;
+
+		public DisplayName(final String lang, final String name) {
+			this.lang = lang;
+			this.name = name;
+		}
+
+		public String getLanguage() {
+			return lang;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * A {@code <mdui:Logo>}. Width and height are kept as unparsed strings;
+	 * they are frequently invalid in practice. None of the values are ever
+	 * <code>null</code>, but they may be empty.
+	 */
+	public static class Logo {
+		private final String width;
+		private final String height;
+		private final String url;
+
+		public Logo(final String width, final String height, final String url) {
+			this.width = width;
+			this.height = height;
+			this.url = url;
+		}
+
+		public String getWidth() {
+			return width;
+		}
+
+		public String getHeight() {
+			return height;
+		}
+
+		public String getURL() {
+			return url;
+		}
+	}
+}
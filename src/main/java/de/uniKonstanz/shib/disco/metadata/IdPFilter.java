@@ -1,17 +1,36 @@
 package de.uniKonstanz.shib.disco.metadata;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.codehaus.jackson.type.TypeReference;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
+import de.uniKonstanz.shib.disco.util.CacheValidator;
 import de.uniKonstanz.shib.disco.util.HTTP;
 
+/**
+ * Filter restricting the IdPs to those accepted by an SP, as listed in its
+ * Shibboleth DiscoFeed. There is one filter per DiscoFeed URL, because each
+ * feed is fetched, validated and refreshed on its own schedule.
+ * <p>
+ * The filter contents, however, are shared: the set of accepted entityIDs is
+ * interned, and the {@link MetadataSnapshot} resolves each distinct set only
+ * once. SPs accepting the same IdPs thus share both the entityID set and the
+ * resolved set of {@link IdPMeta}s; only the small per-URL refresh state is
+ * kept separately.
+ */
 public class IdPFilter implements Runnable {
 	private static final Logger LOGGER = Logger.getLogger(IdPFilter.class
 			.getCanonicalName());
@@ -35,48 +54,136 @@ public class IdPFilter implements Runnable {
 	 * cached.
 	 */
 	private static final int MAX_AGE = MetadataUpdateThread.INTERVAL;
+	/**
+	 * Time, in milliseconds, after which a failed update is retried. Much
+	 * shorter than {@link #MAX_AGE} because the previous IdPs are kept
+	 * meanwhile, and they may be missing entirely.
+	 */
+	private static final long RETRY_DELAY = 60 * 1000;
+	/**
+	 * Range, in milliseconds, of how long before expiry a filter is refreshed
+	 * by the prefetch in {@link MetadataUpdateThread}. Randomized per filter
+	 * so that filters created at the same time, eg. after a restart, don't
+	 * all expire at the same time again.
+	 */
+	private static final long MIN_REFRESH_AHEAD = 2 * 60 * 1000;
+	private static final long MAX_REFRESH_AHEAD = 6 * 60 * 1000;
+	private static final DiscoFeedParser PARSER = new DiscoFeedParser();
+	/**
+	 * Canonical instances of all entityID sets in use. Filters with identical
+	 * content share one instance, which also lets {@link MetadataSnapshot}
+	 * resolve each distinct set only once.
+	 */
+	private static final Interner<ImmutableSet<String>> INTERNER = Interners
+			.newWeakInterner();
 
 	private final String url;
 	private final MetadataUpdateThread meta;
-	private HashSet<IdPMeta> idps;
-	private Thread thread;
+	private final CacheValidator validator;
+	private volatile ImmutableSet<String> entityIDs;
+	private Set<IdPMeta> idps;
+	private Future<?> update;
 	private long lastReload;
+	private final long refreshAhead = MIN_REFRESH_AHEAD
+			+ ThreadLocalRandom.current().nextLong(
+					MAX_REFRESH_AHEAD - MIN_REFRESH_AHEAD);
 
 	public IdPFilter(final MetadataUpdateThread meta, final String url) {
 		this.meta = meta;
 		this.url = url;
+		validator = new CacheValidator();
+	}
+
+	/**
+	 * Restores a filter saved by {@link FilterStore}. The filter is stale, ie.
+	 * it will be refreshed on first use, but its IdPs are usable meanwhile.
+	 * 
+	 * @param meta
+	 *            the {@link MetadataUpdateThread} to resolve IdPs with
+	 * @param url
+	 *            URL of the DiscoFeed
+	 * @param entityIDs
+	 *            the accepted entityIDs from the last successful update
+	 * @param validator
+	 *            the {@link CacheValidator} from the last successful update
+	 */
+	IdPFilter(final MetadataUpdateThread meta, final String url,
+			final Set<String> entityIDs, final CacheValidator validator) {
+		this.meta = meta;
+		this.url = url;
+		this.validator = validator;
+		this.entityIDs = INTERNER.intern(ImmutableSet.copyOf(entityIDs));
+	}
+
+	/** @return the URL of the DiscoFeed */
+	String getURL() {
+		return url;
+	}
+
+	/**
+	 * @return the entityIDs accepted after the last successful update, or
+	 *         <code>null</code> if there hasn't been one yet
+	 */
+	ImmutableSet<String> getEntityIDs() {
+		return entityIDs;
+	}
+
+	/** @return the {@link CacheValidator} of the DiscoFeed */
+	CacheValidator getValidator() {
+		return validator;
 	}
 
 	@Override
 	public void run() {
-		HashSet<IdPMeta> list = null;
+		Set<IdPMeta> list = null;
 		try {
 			list = update();
 		} finally {
 			synchronized (this) {
-				idps = list;
-				thread = null;
-				lastReload = System.currentTimeMillis();
+				update = null;
+				final long now = System.currentTimeMillis();
+				if (list != null) {
+					idps = list;
+					lastReload = now;
+				} else
+					// failed. keep the previous IdPs, if any, rather than
+					// showing all IdPs, and retry after RETRY_DELAY instead
+					// of a full MAX_AGE.
+					lastReload = now - 1000 * MAX_AGE + RETRY_DELAY;
 			}
 		}
 	}
 
-	private HashSet<IdPMeta> update() {
-		final List<IdP> idps;
+	private Set<IdPMeta> update() {
+		final List<String> feed;
 		try {
-			idps = HTTP.getJSON(url, new TypeReference<List<IdP>>() {
-			});
+			feed = HTTP.getParsed(url, PARSER, validator);
 		} catch (final IOException e) {
 			LOGGER.log(Level.INFO, "failed to update filter " + url, e);
 			return null;
 		}
-		final ArrayList<String> ids = new ArrayList<String>(idps.size());
-		for (final IdP idp : idps)
-			ids.add(idp.entityID);
 
-		final HashSet<IdPMeta> list = new HashSet<IdPMeta>(idps.size());
-		meta.addMetadata(list, ids);
-		return list;
+		final ImmutableSet<String> ids;
+		if (feed != null)
+			// most SPs accept exactly the same IdPs, so their filters end up
+			// sharing a single set object
+			ids = INTERNER.intern(ImmutableSet.copyOf(feed));
+		else if (entityIDs != null)
+			// not modified; keep the previous list. it is resolved again
+			// because the metadata may have changed in the meantime.
+			ids = entityIDs;
+		else
+			// not modified, but we don't have anything to keep. can only
+			// happen if the DiscoFeed is broken.
+			return null;
+
+		// throws if there is no metadata yet. the previous entityIDs and
+		// validators are then kept, so the next attempt starts over.
+		final Set<IdPMeta> idps = meta.getSnapshot().resolveFilter(ids);
+		entityIDs = ids;
+		// only skip this version from now on if it could actually be resolved
+		validator.commit();
+		return idps;
 	}
 
 	public Collection<IdPMeta> getIdPs() {
@@ -85,7 +192,7 @@ public class IdPFilter implements Runnable {
 		if (!isStale())
 			return idps;
 
-		final Thread thread;
+		final Future<?> update;
 		final long delay;
 		synchronized (this) {
 			// avoid the race where the list is updated after the first check.
@@ -93,15 +200,16 @@ public class IdPFilter implements Runnable {
 			if (!isStale())
 				return idps;
 
-			if (this.thread == null) {
-				// start a new thread
-				thread = new Thread(this, "filter update " + url);
-				thread.start();
-				this.thread = thread;
-			} else
-				// there is already an update running; let's just wait for that
-				// to finish
-				thread = this.thread;
+			// restored filters are resolved as soon as there is metadata, so
+			// they can be used while the first update is still running
+			final ImmutableSet<String> ids = entityIDs;
+			if (idps == null && ids != null && meta.getSnapshot().isAvailable())
+				idps = meta.getSnapshot().resolveFilter(ids);
+
+			update = queueUpdate();
+			if (update == null)
+				// shutting down; no point in updating anything anymore
+				return idps;
 
 			if (idps != null)
 				delay = MAX_DELAY;
@@ -111,17 +219,57 @@ public class IdPFilter implements Runnable {
 
 		// give the update some time to download a new list of IdPs
 		try {
-			thread.join(delay);
+			update.get(delay, TimeUnit.MILLISECONDS);
 		} catch (final InterruptedException e) {
 			// someone wants us to die. restore the interrupt flag.
 			Thread.currentThread().interrupt();
+		} catch (final TimeoutException e) {
+			// still running or still queued; use stale data for now
+		} catch (final ExecutionException e) {
+			// eg. metadata not available yet. the previous IdPs, if any, are
+			// kept, and the update is retried after RETRY_DELAY.
+			LOGGER.log(Level.WARNING, "filter update failed " + url, e);
 		}
 
 		// the update may have been successful or not. if it was, this will
-		// return the new data; otherwise it may be stale.
+		// return the new data; otherwise it is the previous, stale data.
 		return idps;
 	}
 
+	/**
+	 * Queues an update unless one is already queued or running.
+	 * 
+	 * @return the {@link Future} of the update, or <code>null</code> if the
+	 *         servlet is shutting down
+	 */
+	private synchronized Future<?> queueUpdate() {
+		if (update == null)
+			// queue a new update. it cannot finish and clear the field before
+			// we store it because that needs the lock we hold.
+			try {
+				update = meta.submitFilterUpdate(this);
+			} catch (final RejectedExecutionException e) {
+				return null;
+			}
+		// else there is already an update queued or running; let's just use
+		// that one
+		return update;
+	}
+
+	/** Refreshes the filter in the background, without waiting for it. */
+	void refresh() {
+		queueUpdate();
+	}
+
+	/**
+	 * @return <code>true</code> if the filter will expire soon and should be
+	 *         refreshed ahead of time
+	 */
+	boolean isExpiring() {
+		return System.currentTimeMillis() - lastReload > 1000 * MAX_AGE
+				- refreshAhead;
+	}
+
 	private boolean isStale() {
 		return System.currentTimeMillis() - lastReload > 1000 * MAX_AGE;
 	}
@@ -1,7 +1,11 @@
 package de.uniKonstanz.shib.disco.metadata;
 
+import java.text.Collator;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
@@ -10,12 +14,17 @@ import com.google.common.escape.Escapers;
 import com.google.common.html.HtmlEscapers;
 
 import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
-import de.uniKonstanz.shib.disco.logo.FallbackLogoThread;
-import de.uniKonstanz.shib.disco.logo.LogoUpdaterThread;
+import de.uniKonstanz.shib.disco.logo.FallbackLogo;
+import de.uniKonstanz.shib.disco.logo.LogoUpdater;
 
 /**
  * Data class to represent an IdP in memory. Holds entityID, display name and
  * logo; compares case-insensitively according to display name.
+ * <p>
+ * The display names are immutable; a name change creates a new object with
+ * {@link #withDisplayNames(Map, String)}. The logo is downloaded asynchronously and
+ * thus kept in a mutable state object that is shared by all versions of the
+ * same IdP.
  */
 public class IdPMeta extends XPMeta<IdPMeta> implements Comparable<IdPMeta> {
 	/**
@@ -30,18 +39,37 @@ public class IdPMeta extends XPMeta<IdPMeta> implements Comparable<IdPMeta> {
 	private static final String DEFAULT_DISPLAY_NAME_KEY = null;
 	private static final long LOGO_SHELF_LIFE = 1000 * 60 * 60 * 2;
 
-	private final Map<String, String> lcDisplayNames = new HashMap<String, String>();
-	private final Map<String, String> escDisplayNames = new HashMap<String, String>();
-	private final String fallbackLogo;
-	private String logo;
-	private long lastLogoUpdate;
+	private final Map<String, String> lcDisplayNames;
+	private final Map<String, String> escDisplayNames;
+	private final String defaultName;
+	private final Map<String, byte[]> collationKeys = new ConcurrentHashMap<String, byte[]>();
+	private final LogoState logoState;
 
 	public IdPMeta(final String entityID) {
-		super(entityID);
-
 		// dummy initial values
-		setDisplayName(DEFAULT_DISPLAY_NAME_KEY, entityID);
-		fallbackLogo = "i" + getEntityHash() + ".png";
+		this(entityID, Collections.singletonMap(DEFAULT_DISPLAY_NAME_KEY,
+				entityID), new LogoState("i" + DigestUtils.shaHex(entityID)
+				+ ".png"));
+	}
+
+	private IdPMeta(final String entityID,
+			final Map<String, String> displayNames, final LogoState logoState) {
+		super(entityID);
+		this.logoState = logoState;
+
+		final Map<String, String> lc = new HashMap<String, String>();
+		final Map<String, String> esc = new HashMap<String, String>();
+		for (final Map.Entry<String, String> e : displayNames.entrySet()) {
+			final String normalizedDisplayName = e.getValue()
+					.replaceAll("\\s+", " ").trim();
+			lc.put(e.getKey(), normalizedDisplayName.toLowerCase());
+			esc.put(e.getKey(), HTML_ESCAPER.escape(normalizedDisplayName));
+		}
+		lcDisplayNames = Collections.unmodifiableMap(lc);
+		escDisplayNames = Collections.unmodifiableMap(esc);
+		defaultName = displayNames.get(DEFAULT_DISPLAY_NAME_KEY);
+		// collation keys are computed when a list in that language is first
+		// sorted. most languages are never requested at all.
 	}
 
 	/**
@@ -84,30 +112,58 @@ public class IdPMeta extends XPMeta<IdPMeta> implements Comparable<IdPMeta> {
 	}
 
 	/**
-	 * Changes the display name.
+	 * Gets the collation key of the display name, for sorting in the given
+	 * language. Compares case-insensitively, but orders accented characters
+	 * according to the rules of that language. Like
+	 * {@link #getLowercaseDisplayName(String)}, it falls back to the default
+	 * display name if there is no name in that language, but that name is
+	 * still sorted according to the rules of the requested language.
 	 * 
 	 * @param lang
-	 *            language tag for the name
-	 * @param displayName
-	 *            the new, raw display name
+	 *            language to sort in
+	 * @return the collation key, to be compared as unsigned bytes
 	 */
-	public void setDisplayName(final String lang, final String displayName) {
-		final String normalizedDisplayName = displayName
-				.replaceAll("\\s+", " ").trim();
-
-		lcDisplayNames.put(lang, normalizedDisplayName.toLowerCase());
-		escDisplayNames.put(lang, HTML_ESCAPER.escape(normalizedDisplayName));
+	public byte[] getCollationKey(final String lang) {
+		byte[] key = collationKeys.get(lang);
+		if (key == null) {
+			// Collator.getInstance() returns a fresh clone every time, so
+			// this is thread-safe. worst case, two threads compute the same
+			// key.
+			final Collator collator = Collator.getInstance(Locale
+					.forLanguageTag(lang));
+			collator.setStrength(Collator.SECONDARY);
+			key = collator.getCollationKey(getLowercaseDisplayName(lang))
+					.toByteArray();
+			collationKeys.put(lang, key);
+		}
+		return key;
 	}
 
 	/**
-	 * Changes the display name in the
-	 * {@link AbstractShibbolethServlet#DEFAULT_LANGUAGE}.
+	 * Creates a copy of this IdP with different display names. The logo is
+	 * shared with this object, so logo updates affect both.
 	 * 
-	 * @param displayName
-	 *            the new, raw display name in the default language
+	 * @param displayNames
+	 *            the new, raw display names, keyed by language
+	 * @param defaultName
+	 *            the new, raw display name in the
+	 *            {@link AbstractShibbolethServlet#DEFAULT_LANGUAGE}, or
+	 *            <code>null</code> to keep the current one
+	 * @return the new {@link IdPMeta}, or <code>this</code> if the display
+	 *         names didn't actually change
 	 */
-	public void setDefaultDisplayName(final String displayName) {
-		setDisplayName(DEFAULT_DISPLAY_NAME_KEY, displayName);
+	public IdPMeta withDisplayNames(final Map<String, String> displayNames,
+			final String defaultName) {
+		final Map<String, String> names = new HashMap<String, String>(
+				displayNames);
+		if (defaultName != null)
+			names.put(DEFAULT_DISPLAY_NAME_KEY, defaultName);
+		else
+			names.put(DEFAULT_DISPLAY_NAME_KEY, this.defaultName);
+		final IdPMeta meta = new IdPMeta(entityID, names, logoState);
+		if (meta.escDisplayNames.equals(escDisplayNames))
+			return this;
+		return meta;
 	}
 
 	/**
@@ -118,20 +174,21 @@ public class IdPMeta extends XPMeta<IdPMeta> implements Comparable<IdPMeta> {
 	 * @return filename of the logo
 	 */
 	public String getLogoFilename() {
+		final String logo = logoState.logo;
 		if (logo != null)
 			return logo;
-		return fallbackLogo;
+		return logoState.fallbackLogo;
 	}
 
 	/**
-	 * Sets the filename of the logo. To be called by {@link LogoUpdaterThread}.
+	 * Sets the filename of the logo. To be called by {@link LogoUpdater}.
 	 * 
 	 * @param logo
 	 *            the new logo filename, including extension
 	 */
 	public void setLogoFilename(final String logo) {
-		this.logo = logo;
-		lastLogoUpdate = System.currentTimeMillis();
+		logoState.logo = logo;
+		logoState.lastLogoUpdate = System.currentTimeMillis();
 	}
 
 	/**
@@ -141,19 +198,20 @@ public class IdPMeta extends XPMeta<IdPMeta> implements Comparable<IdPMeta> {
 	 *         {@link #LOGO_SHELF_LIFE}
 	 */
 	public boolean isStaleLogo() {
-		final long delta = System.currentTimeMillis() - lastLogoUpdate;
+		final long delta = System.currentTimeMillis()
+				- logoState.lastLogoUpdate;
 		return delta > LOGO_SHELF_LIFE;
 	}
 
 	/**
 	 * Gets the filename of the fallback logo. Intended for
-	 * {@link FallbackLogoThread}; for everything else,
+	 * {@link FallbackLogo}; for everything else,
 	 * {@link #getLogoFilename()} automatically decides which logo to return.
 	 * 
 	 * @return filename of the fallback logo
 	 */
 	public String getFallbackLogo() {
-		return fallbackLogo;
+		return logoState.fallbackLogo;
 	}
 
 	/**
@@ -168,6 +226,21 @@ public class IdPMeta extends XPMeta<IdPMeta> implements Comparable<IdPMeta> {
 	@Override
 	public String toString() {
 		return super.toString() + ": "
-				+ lcDisplayNames.get(DEFAULT_DISPLAY_NAME_KEY) + "; " + logo;
+				+ lcDisplayNames.get(DEFAULT_DISPLAY_NAME_KEY) + "; "
+				+ logoState.logo;
+	}
+
+	/**
+	 * Logo state shared by all versions of an IdP. Written by the logo
+	 * threads, read by request threads.
+	 */
+	private static final class LogoState {
+		private final String fallbackLogo;
+		private volatile String logo;
+		private volatile long lastLogoUpdate;
+
+		private LogoState(final String fallbackLogo) {
+			this.fallbackLogo = fallbackLogo;
+		}
 	}
 }
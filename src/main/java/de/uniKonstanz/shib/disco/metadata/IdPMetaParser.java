@@ -1,174 +1,249 @@
 package de.uniKonstanz.shib.disco.metadata;
 
-import java.io.File;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
-import javax.servlet.ServletException;
-import javax.xml.xpath.XPathExpressionException;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import com.google.common.hash.HashCode;
 
 import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
-import de.uniKonstanz.shib.disco.logo.FallbackLogoThread;
-import de.uniKonstanz.shib.disco.logo.LogoUpdaterThread;
+import de.uniKonstanz.shib.disco.logo.LogoPipeline;
 
-class IdPMetaParser extends XPMetaParser {
+class IdPMetaParser extends XPMetaParser<IdPDescriptor> {
 	private static final Logger LOGGER = Logger.getLogger(IdPMetaParser.class
 			.getCanonicalName());
 
 	private Map<String, IdPMeta> metadata;
-	private Map<String, List<IdPMeta>> allMetadata;
-	private final File logoDir;
+	private SortedIdPLists allMetadata;
+	private Map<String, HashCode> contentHashes = new HashMap<String, HashCode>();
+	private final LogoPipeline logos;
 	private final HashSet<String> suffixes;
+	private final ForkJoinPool pool;
 
 	/**
 	 * @param discoFeed
 	 *            URL of Shibboleth DiscoFeed
-	 * @param logoDir
-	 *            logo cache directory
-	 * @throws ServletException
-	 *             if the logo cache directory cannot be created
+	 * @param logos
+	 *            {@link LogoPipeline} to update logos in
+	 * @param pool
+	 *            {@link ForkJoinPool} for parallel processing of updates
 	 */
-	public IdPMetaParser(final File logoDir) throws ServletException {
-		this.logoDir = logoDir;
-		logoDir.mkdirs();
-		if (!logoDir.isDirectory())
-			throw new ServletException("cannot create "
-					+ logoDir.getAbsolutePath());
+	public IdPMetaParser(final LogoPipeline logos, final ForkJoinPool pool) {
+		this.logos = logos;
+		this.pool = pool;
 		suffixes = new HashSet<String>();
 		for (final String s : ImageIO.getReaderFileSuffixes())
 			suffixes.add(s);
 	}
 
 	/**
-	 * Gets metadata for a particular IdP, given its entityID. Returns
-	 * <code>null</code> if this IdP is unknown.
+	 * Gets the IdPs from the last update. The map is never modified again.
 	 * 
-	 * @param entityID
-	 *            identifies the IdP
-	 * @return corresponding {@link IdPMeta} object, or <code>null</code>
+	 * @return map of entityID to {@link IdPMeta}, or <code>null</code> before
+	 *         the first update
 	 */
-	public IdPMeta getMetadata(final String entityID) {
-		final Map<String, IdPMeta> map = metadata;
-		if (map == null)
-			return null;
-		return map.get(entityID);
+	Map<String, IdPMeta> getIdPs() {
+		return metadata;
 	}
 
 	/**
-	 * Obtains metadata for a list of IdP, identified by their entityIDs.
+	 * Gets the IdPs from the last update, sorted by display name for every
+	 * language. The lists are sorted on demand.
 	 * 
-	 * @param list
-	 *            return value; entries are appended to this list
-	 * @param entities
-	 *            list of entityIDs for IdPs
-	 * @throws IllegalStateException
-	 *             if metadata is not available yet
+	 * @return the {@link SortedIdPLists}, or <code>null</code> before the
+	 *         first update
 	 */
-	public void addMetadata(final Collection<IdPMeta> list,
-			final Collection<String> entities) {
-		final Map<String, IdPMeta> map = metadata;
-		if (map == null)
-			throw new IllegalStateException("metadata not yet available");
-
-		for (final String entityID : entities) {
-			final IdPMeta meta = map.get(entityID);
-			if (meta != null)
-				list.add(meta);
-			else
-				LOGGER.warning("cannot find metadata for " + entityID);
-		}
+	SortedIdPLists getSortedIdPs() {
+		return allMetadata;
 	}
 
 	/**
-	 * Obtains a list of all known IdPs, sorted by display name. Never returns
-	 * <code>null</code>, but may return an empty list.
-	 * 
-	 * @param languages
-	 *            preferred languages (for sorting)
-	 * 
-	 * @return sorted list of {@link IdPMeta}s
+	 * Updates the IdP metadata and starts asynchronous logo download. IdPs
+	 * whose descriptor is unchanged since the last update are not processed
+	 * again, and the sorted lists are only rebuilt if the set of IdPs or their
+	 * display names changed. The per-IdP processing runs in parallel on the
+	 * {@link ForkJoinPool}.
 	 */
-	public List<IdPMeta> getAllMetadata(final Iterable<String> languages) {
-		final Map<String, List<IdPMeta>> meta = allMetadata;
-		if (meta == null)
-			return Collections.emptyList();
-		// try to find list in the best language we have
-		for (final String lang : languages)
-			if (meta.containsKey(lang))
-				return meta.get(lang);
-		// else fall back to the default language. update() ensures this entry
-		// always exists.
-		return meta.get(AbstractShibbolethServlet.DEFAULT_LANGUAGE);
-	}
-
-	/** Parses the XML document and starts asynchronous logo download. */
 	@Override
-	public void update(final Document doc) {
-		final Element root = doc.getDocumentElement();
-		if (!root.getTagName().equals("Metadata"))
-			throw new IllegalArgumentException("invalid root tag "
-					+ root.getTagName());
+	public void update(final Collection<IdPDescriptor> descriptors) {
+		// entityIDs should be unique, but if they aren't, the last one wins.
+		// the parallel processing below relies on every IdPMeta being handled
+		// by exactly one task.
+		final LinkedHashMap<String, IdPDescriptor> unique = new LinkedHashMap<String, IdPDescriptor>();
+		for (final IdPDescriptor idp : descriptors)
+			unique.put(idp.getEntityID(), idp);
 
-		final HashMap<String, IdPMeta> map = new HashMap<String, IdPMeta>();
-		final HashSet<String> languages = new HashSet<String>();
-		for (final Element node : getChildren(root, "IDP")) {
+		final Map<String, IdPMeta> previous = metadata;
+		final IdPDescriptor[] idps = new IdPDescriptor[unique.size()];
+		final IdPMeta[] metas = new IdPMeta[unique.size()];
+		int added = 0, n = 0;
+		for (final IdPDescriptor idp : unique.values()) {
 			// reuse existing metadata object if possible
-			final String entityID = node.getAttribute("entityID");
-			final IdPMeta meta;
-			if (metadata == null || !metadata.containsKey(entityID)) {
+			final String entityID = idp.getEntityID();
+			IdPMeta meta = null;
+			if (previous != null)
+				meta = previous.get(entityID);
+			if (meta == null) {
 				meta = new IdPMeta(entityID);
-				new FallbackLogoThread(logoDir, meta).start();
-			} else
-				meta = metadata.get(entityID);
-			map.put(entityID, meta);
-
-			try {
-				updateDisplayNames(meta, node, languages);
-				updateLogo(meta, node);
-			} catch (final XPathExpressionException e) {
-				LOGGER.log(Level.WARNING, "failed to parse metadata for "
-						+ entityID + "; keeping existing data", e);
+				logos.createFallbackLogo(meta);
+				added++;
 			}
+			idps[n] = idp;
+			metas[n] = meta;
+			n++;
 		}
+		final int removed = (previous != null ? previous.size() : 0)
+				- (idps.length - added);
 
-		// pre-sort the list of all known IdPs. avoids re-sorting it for every
-		// request.
-		// also ensure there is always an entry for the default language.
-		// getAllMetadata() assumes there will always be one, but the metadata
-		// might not contain an entry in the default language for any IdP.
-		languages.add(AbstractShibbolethServlet.DEFAULT_LANGUAGE);
-		final HashMap<String, List<IdPMeta>> all = new HashMap<String, List<IdPMeta>>();
-		for (final String lang : languages) {
-			final List<IdPMeta> list = new ArrayList<IdPMeta>(map.values());
-			Collections.sort(list, new IdPCompatator(lang));
-			all.put(lang, list);
+		// process the IdPs themselves. each IdP is completely independent of
+		// all others. IdPs whose names change are replaced in the array.
+		final HashCode[] hashes = new HashCode[idps.length];
+		final UpdateResult result = pool.invoke(new UpdateTask(idps, metas,
+				hashes, 0, idps.length));
+		final HashMap<String, IdPMeta> map = new HashMap<String, IdPMeta>();
+		final HashMap<String, HashCode> hashMap = new HashMap<String, HashCode>();
+		for (int i = 0; i < idps.length; i++) {
+			map.put(idps[i].getEntityID(), metas[i]);
+			hashMap.put(idps[i].getEntityID(), hashes[i]);
 		}
+		final Set<String> languages = Collections
+				.unmodifiableSet(result.languages);
+		// new IdPs count as changed in the UpdateTask
+		final int changed = result.changed - added;
+
+		// the sorted lists are only created on demand. if names and the set of
+		// IdPs are unchanged, the lists sorted for the previous snapshot are
+		// still perfectly sorted, and can simply be reused.
+		final SortedIdPLists sorted = new SortedIdPLists(map.values(),
+				languages);
+		final boolean resort = result.namesChanged || added > 0 || removed > 0
+				|| allMetadata == null;
+		if (!resort)
+			sorted.copyFrom(allMetadata);
+		allMetadata = sorted;
 		// update state variables
-		metadata = map;
-		allMetadata = all;
+		metadata = Collections.unmodifiableMap(map);
+		contentHashes = hashMap;
+		LOGGER.info("IdP update: " + added + " added, " + changed
+				+ " changed, " + result.unchanged + " unchanged, " + removed
+				+ " removed; " + languages.size() + " languages, "
+				+ (resort ? "sorting invalidated" : "sorting unchanged"));
+	}
+
+	/**
+	 * Per-IdP processing. Each task handles a contiguous range of IdPs,
+	 * splitting it in half until it is small enough to be worth processing in
+	 * one go.
+	 */
+	private final class UpdateTask extends RecursiveTask<UpdateResult> {
+		private static final long serialVersionUID = 1L;
+		/** Number of IdPs below which a task isn't split any further. */
+		private static final int THRESHOLD = 64;
+		private final IdPDescriptor[] idps;
+		private final IdPMeta[] metas;
+		private final HashCode[] hashes;
+		private final int start;
+		private final int end;
+
+		private UpdateTask(final IdPDescriptor[] idps, final IdPMeta[] metas,
+				final HashCode[] hashes, final int start, final int end) {
+			this.idps = idps;
+			this.metas = metas;
+			this.hashes = hashes;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected UpdateResult compute() {
+			if (end - start > THRESHOLD) {
+				final int middle = (start + end) >>> 1;
+				final UpdateTask second = new UpdateTask(idps, metas, hashes,
+						middle, end);
+				second.fork();
+				final UpdateResult result = new UpdateTask(idps, metas,
+						hashes, start, middle).compute();
+				result.merge(second.join());
+				return result;
+			}
+
+			final UpdateResult result = new UpdateResult();
+			for (int i = start; i < end; i++) {
+				final IdPDescriptor idp = idps[i];
+				final IdPMeta meta = metas[i];
+				addLanguages(idp, result.languages);
+
+				hashes[i] = idp.getContentHash();
+				if (hashes[i].equals(contentHashes.get(idp.getEntityID()))) {
+					// nothing changed. the logo still has to be refreshed
+					// periodically, though.
+					result.unchanged++;
+					if (meta.isStaleLogo())
+						updateLogo(meta, idp);
+					continue;
+				}
+
+				metas[i] = updateDisplayNames(meta, idp);
+				if (metas[i] != meta)
+					result.namesChanged = true;
+				updateLogo(meta, idp);
+				result.changed++;
+			}
+			return result;
+		}
+	}
+
+	/** Statistics and languages collected by an {@link UpdateTask}. */
+	private static final class UpdateResult {
+		private final Set<String> languages = new HashSet<String>();
+		private int changed;
+		private int unchanged;
+		private boolean namesChanged;
+
+		private void merge(final UpdateResult other) {
+			languages.addAll(other.languages);
+			changed += other.changed;
+			unchanged += other.unchanged;
+			namesChanged |= other.namesChanged;
+		}
+	}
+
+	/**
+	 * Collects the languages of all display names, in the same way that
+	 * {@link #updateDisplayNames(IdPMeta, IdPDescriptor)} picks them.
+	 */
+	private static void addLanguages(final IdPDescriptor idp,
+			final Set<String> languages) {
+		for (final IdPDescriptor.DisplayName i : idp.getDisplayNames())
+			if (!i.getLanguage().isEmpty() && !i.getName().trim().isEmpty())
+				languages.add(Locale.forLanguageTag(i.getLanguage())
+						.getLanguage());
 	}
 
-	private void updateDisplayNames(final IdPMeta meta, final Element node,
-			final Set<String> languages) throws XPathExpressionException {
+	/**
+	 * Updates all display names of an IdP.
+	 * 
+	 * @return the new {@link IdPMeta}, or the given one if no name actually
+	 *         changed
+	 */
+	private IdPMeta updateDisplayNames(final IdPMeta meta,
+			final IdPDescriptor idp) {
 		// get display name in all available languages
+		final Map<String, String> names = new HashMap<String, String>();
 		String defaultName = null;
-		for (final Element i : getChildren(node, "DisplayName")) {
-			final String lang = i.getAttribute("lang");
-			final String displayName = i.getTextContent();
+		for (final IdPDescriptor.DisplayName i : idp.getDisplayNames()) {
+			final String lang = i.getLanguage();
+			final String displayName = i.getName();
 			if (displayName.trim().isEmpty())
 				continue; // never useful
 
@@ -176,13 +251,11 @@ class IdPMetaParser extends XPMetaParser {
 			// ignores regional variants (en_GB, en_US) but allows fuzzy
 			// matching, ie. less fallbacks to the default language.
 			final String language = Locale.forLanguageTag(lang).getLanguage();
-			if (!lang.isEmpty()) {
+			if (!lang.isEmpty())
 				// only bother to add display names in valid ISO 2-letter
 				// languages to the explicit list, but do consider them for the
 				// default display name below.
-				meta.setDisplayName(language, displayName);
-				languages.add(language);
-			}
+				names.put(language, displayName);
 
 			// determine name in default language
 			if (AbstractShibbolethServlet.DEFAULT_LANGUAGE.equals(language))
@@ -194,24 +267,22 @@ class IdPMetaParser extends XPMetaParser {
 				// one yet
 				defaultName = displayName;
 		}
-		// keep previous default name if we don't have a new one
-		if (defaultName != null)
-			meta.setDefaultDisplayName(defaultName);
+		// keeps previous default name if we don't have a new one
+		return meta.withDisplayNames(names, defaultName);
 	}
 
-	private void updateLogo(final IdPMeta meta, final Element node)
-			throws XPathExpressionException {
+	private void updateLogo(final IdPMeta meta, final IdPDescriptor idp) {
 		// find the logo with the largest declared size (number of pixels).
 		// if there are no (sensible) logos, bestLogo will be null, and the
 		// LogoConverter will create a random "carpet" logo.
 		String bestURL = null;
 		int bestPixels = -1;
 		final boolean bestKnown = false;
-		for (final Element i : getChildren(node, "Logo")) {
+		for (final IdPDescriptor.Logo i : idp.getLogos()) {
 			try {
-				final int width = Integer.parseInt(i.getAttribute("width"));
-				final int height = Integer.parseInt(i.getAttribute("height"));
-				final String url = i.getTextContent();
+				final int width = Integer.parseInt(i.getWidth());
+				final int height = Integer.parseInt(i.getHeight());
+				final String url = i.getURL();
 				// sanity checking
 				if (width <= 0 || height <= 0 || url.isEmpty())
 					continue;
@@ -241,32 +312,6 @@ class IdPMetaParser extends XPMetaParser {
 		}
 		// keep previous logo if we don't have a new one
 		if (bestURL != null && meta.isStaleLogo())
-			new LogoUpdaterThread(logoDir, meta, bestURL).start();
-	}
-
-	private final class IdPCompatator implements Comparator<IdPMeta> {
-		private final String lang;
-
-		private IdPCompatator(final String lang) {
-			this.lang = lang;
-		}
-
-		@Override
-		public int compare(final IdPMeta a, final IdPMeta b) {
-			// sort by display name in target language, case
-			// insensitively
-			final String aName = a.getLowercaseDisplayName(lang);
-			final String bName = b.getLowercaseDisplayName(lang);
-			final int deltaName = aName.compareTo(bName);
-			if (deltaName != 0)
-				return deltaName;
-			// make sure two different IdPs are never considered equal.
-			return a.compareTo(b);
-		}
-	}
-
-	public int getNumIdPs() {
-		final Map<String, IdPMeta> meta = metadata;
-		return meta != null ? meta.size() : 0;
+			logos.updateLogo(meta, bestURL);
 	}
 }
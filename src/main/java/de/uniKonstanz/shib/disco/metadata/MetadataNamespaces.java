@@ -11,9 +11,13 @@ import javax.xml.namespace.NamespaceContext;
 class MetadataNamespaces implements NamespaceContext {
 	public static final NamespaceContext INSTANCE = new MetadataNamespaces();
 
-	private static final String IDPDISCO_NS = "urn:oasis:names:tc:SAML:profiles:SSO:idp-discovery-protocol";
-	private static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
-	private static final String METADATA_UI_NS = "urn:oasis:names:tc:SAML:metadata:ui";
+	static final String IDPDISCO_NS = "urn:oasis:names:tc:SAML:profiles:SSO:idp-discovery-protocol";
+	static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+	static final String METADATA_UI_NS = "urn:oasis:names:tc:SAML:metadata:ui";
+	static final String METADATA_RPI_NS = "urn:oasis:names:tc:SAML:metadata:rpi";
+	static final String METADATA_ATTR_NS = "urn:oasis:names:tc:SAML:metadata:attribute";
+	static final String ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+	static final String ENTITY_CATEGORY = "http://macedir.org/entity-category";
 
 	private static final Map<String, String> namespaces = new HashMap<String, String>();
 	private static final Map<String, String> prefixes = new HashMap<String, String>();
@@ -23,6 +27,9 @@ class MetadataNamespaces implements NamespaceContext {
 		addNS("idpdisco", IDPDISCO_NS);
 		addNS("md", METADATA_NS);
 		addNS("mdui", METADATA_UI_NS);
+		addNS("mdrpi", METADATA_RPI_NS);
+		addNS("mdattr", METADATA_ATTR_NS);
+		addNS("saml", ASSERTION_NS);
 	}
 
 	private static void addNS(final String prefix, final String namespace) {
@@ -0,0 +1,268 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.util.concurrent.AtomicLongMap;
+
+import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
+
+/**
+ * Immutable, consistent view of all IdP and SP metadata from a single update.
+ * {@link MetadataUpdateThread} publishes a new snapshot after every update
+ * through a single volatile reference; requests grab one snapshot and use it
+ * throughout, so they never see a half-applied update and never need to lock
+ * anything.
+ */
+public class MetadataSnapshot {
+	private static final Logger LOGGER = Logger
+			.getLogger(MetadataSnapshot.class.getCanonicalName());
+	/** Snapshot used until metadata is first available. */
+	static final MetadataSnapshot EMPTY = new MetadataSnapshot(0,
+			Collections.<String, IdPMeta> emptyMap(), new SortedIdPLists(
+					Collections.<IdPMeta> emptyList(),
+					Collections.<String> emptySet()),
+			Collections.<String, SPMeta> emptyMap(),
+			Collections.<IdPDescriptor> emptyList(),
+			AtomicLongMap.<String> create());
+
+	private final long generation;
+	private final Map<String, IdPMeta> idps;
+	private final SortedIdPLists sortedIdPs;
+	private final Map<String, SPMeta> sps;
+	private final ImmutableSetMultimap<String, String> responseLocations;
+	private final ImmutableSetMultimap<String, IdPMeta> registrationAuthorities;
+	private final ImmutableSetMultimap<String, IdPMeta> entityCategories;
+	private final AtomicLongMap<String> languageRequests;
+	private final LoadingCache<ImmutableSet<String>, Set<IdPMeta>> filters;
+	private final LoadingCache<FilterPolicy, Set<IdPMeta>> policies;
+
+	/**
+	 * @param generation
+	 *            sequence number of the update that produced this snapshot
+	 * @param idps
+	 *            unmodifiable map of entityID to {@link IdPMeta}
+	 * @param sortedIdPs
+	 *            the {@link SortedIdPLists} of the IdPs in {@code idps}
+	 * @param sps
+	 *            unmodifiable map of entityID to {@link SPMeta}
+	 * @param descriptors
+	 *            the {@link IdPDescriptor}s the IdPs were created from, for
+	 *            evaluating {@link FilterPolicy}s
+	 * @param languageRequests
+	 *            counts how often each sorted list is requested; shared by all
+	 *            snapshots
+	 */
+	MetadataSnapshot(final long generation, final Map<String, IdPMeta> idps,
+			final SortedIdPLists sortedIdPs, final Map<String, SPMeta> sps,
+			final Collection<IdPDescriptor> descriptors,
+			final AtomicLongMap<String> languageRequests) {
+		this.generation = generation;
+		this.idps = idps;
+		this.sortedIdPs = sortedIdPs;
+		this.sps = sps;
+		this.languageRequests = languageRequests;
+
+		// index of all response locations, so that validating a return URL
+		// is a single hash lookup instead of a scan over all locations. an
+		// SP can register many locations, and the same location can in
+		// principle belong to several SPs.
+		final ImmutableSetMultimap.Builder<String, String> index = ImmutableSetMultimap
+				.builder();
+		for (final SPMeta sp : sps.values())
+			for (final String location : sp.getReturnLocations())
+				index.put(location, sp.getEntityID());
+		responseLocations = index.build();
+
+		// same for the attributes used by local filter policies
+		final ImmutableSetMultimap.Builder<String, IdPMeta> authorities = ImmutableSetMultimap
+				.builder();
+		final ImmutableSetMultimap.Builder<String, IdPMeta> categories = ImmutableSetMultimap
+				.builder();
+		for (final IdPDescriptor descriptor : descriptors) {
+			final IdPMeta idp = idps.get(descriptor.getEntityID());
+			if (idp == null)
+				continue;
+			if (!descriptor.getRegistrationAuthority().isEmpty())
+				authorities.put(descriptor.getRegistrationAuthority(), idp);
+			for (final String category : descriptor.getEntityCategories())
+				categories.put(category, idp);
+		}
+		registrationAuthorities = authorities.build();
+		entityCategories = categories.build();
+
+		// weak keys compare by identity, which is exactly right for the
+		// interned entityID sets. entries disappear along with the last
+		// IdPFilter using them.
+		filters = CacheBuilder.newBuilder().weakKeys()
+				.build(new CacheLoader<ImmutableSet<String>, Set<IdPMeta>>() {
+					@Override
+					public Set<IdPMeta> load(
+							final ImmutableSet<String> entities) {
+						return resolve(entities);
+					}
+				});
+		policies = CacheBuilder.newBuilder().weakKeys()
+				.build(new CacheLoader<FilterPolicy, Set<IdPMeta>>() {
+					@Override
+					public Set<IdPMeta> load(final FilterPolicy policy) {
+						return resolve(policy);
+					}
+				});
+	}
+
+	/**
+	 * Gets the sequence number of this snapshot. It increases by one with
+	 * every update; the {@link #isAvailable() empty} snapshot has generation
+	 * 0.
+	 * 
+	 * @return the generation of this snapshot
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return <code>false</code> if this is the empty snapshot used before
+	 *         metadata is first available
+	 */
+	public boolean isAvailable() {
+		return generation > 0;
+	}
+
+	/**
+	 * Gets metadata for a particular IdP, given its entityID. Returns
+	 * <code>null</code> if this IdP is unknown.
+	 * 
+	 * @param entityID
+	 *            identifies the IdP
+	 * @return corresponding {@link IdPMeta} object, or <code>null</code>
+	 */
+	public IdPMeta getMetadata(final String entityID) {
+		return idps.get(entityID);
+	}
+
+	/**
+	 * Resolves the entityIDs accepted by an {@link IdPFilter} to the
+	 * corresponding IdPs. Each distinct set is only resolved once per
+	 * snapshot; filters with the same content thus share the same result.
+	 * Unknown entityIDs are ignored.
+	 * 
+	 * @param entities
+	 *            interned set of entityIDs; compared by identity
+	 * @return unmodifiable set of {@link IdPMeta}s
+	 * @throws IllegalStateException
+	 *             if metadata is not available yet
+	 */
+	Set<IdPMeta> resolveFilter(final ImmutableSet<String> entities) {
+		if (!isAvailable())
+			throw new IllegalStateException("metadata not yet available");
+		return filters.getUnchecked(entities);
+	}
+
+	/**
+	 * Evaluates a local {@link FilterPolicy} against the metadata. Each policy
+	 * is only evaluated once per snapshot.
+	 * 
+	 * @param policy
+	 *            the {@link FilterPolicy} of the SP
+	 * @return unmodifiable set of accepted {@link IdPMeta}s
+	 */
+	Set<IdPMeta> resolvePolicy(final FilterPolicy policy) {
+		return policies.getUnchecked(policy);
+	}
+
+	private Set<IdPMeta> resolve(final FilterPolicy policy) {
+		final ImmutableSet.Builder<IdPMeta> list = ImmutableSet.builder();
+		for (final String authority : policy.getRegistrationAuthorities())
+			list.addAll(registrationAuthorities.get(authority));
+		for (final String category : policy.getEntityCategories())
+			list.addAll(entityCategories.get(category));
+		for (final String entityID : policy.getEntityIDs()) {
+			final IdPMeta meta = idps.get(entityID);
+			if (meta != null)
+				list.add(meta);
+		}
+		return list.build();
+	}
+
+	private Set<IdPMeta> resolve(final Set<String> entities) {
+		final ImmutableSet.Builder<IdPMeta> list = ImmutableSet.builder();
+		for (final String entityID : entities) {
+			final IdPMeta meta = idps.get(entityID);
+			if (meta != null)
+				list.add(meta);
+			else
+				LOGGER.warning("cannot find metadata for " + entityID);
+		}
+		return list.build();
+	}
+
+	/**
+	 * Obtains a list of all known IdPs, sorted by display name. Never returns
+	 * <code>null</code>, but may return an empty list. The list is sorted on
+	 * first use.
+	 * 
+	 * @param languages
+	 *            preferred languages (for sorting)
+	 * 
+	 * @return sorted, unmodifiable list of {@link IdPMeta}s
+	 */
+	public List<IdPMeta> getAllMetadata(final Iterable<String> languages) {
+		// try to find list in the best language we have, else fall back to
+		// the default language, which always exists.
+		String best = AbstractShibbolethServlet.DEFAULT_LANGUAGE;
+		for (final String lang : languages)
+			if (sortedIdPs.hasLanguage(lang)) {
+				best = lang;
+				break;
+			}
+		languageRequests.incrementAndGet(best);
+		return sortedIdPs.get(best);
+	}
+
+	/** @return the sorted lists, for prewarming and statistics */
+	SortedIdPLists getSortedIdPs() {
+		return sortedIdPs;
+	}
+
+	public boolean isValidResponseLocation(final String entityID) {
+		return sps.containsKey(entityID);
+	}
+
+	public boolean isValidResponseLocation(final String entityID,
+			final String url) {
+		// the URL must match one of the acceptable response locations,
+		// ignoring the query string in the URL. response locations never
+		// contain a query string themselves (SPMetaParser drops those), so
+		// stripping it from the URL and looking for an exact match is
+		// equivalent to checking for a prefix followed by '?'.
+		final int query = url.indexOf('?');
+		final String location = query >= 0 ? url.substring(0, query) : url;
+		return responseLocations.containsEntry(location, entityID);
+	}
+
+	public String getDefaultResponseLocation(final String entityID) {
+		final SPMeta sp = sps.get(entityID);
+		if (sp == null)
+			return null;
+		return sp.getDefaultReturn();
+	}
+
+	public int getNumIdPs() {
+		return idps.size();
+	}
+
+	public int getNumSPs() {
+		return sps.size();
+	}
+}
@@ -0,0 +1,156 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import de.uniKonstanz.shib.disco.util.CacheValidator;
+import de.uniKonstanz.shib.disco.util.HTTP;
+
+/**
+ * Background thread that periodically downloads a single metadata source. Each
+ * source has its own schedule, conditional GET state and snapshot file, so a
+ * slow or broken source never delays the others. After every change, the
+ * {@link MetadataUpdateThread} merges the data of all sources into one
+ * {@link MetadataSnapshot}.
+ */
+class MetadataSource extends Thread {
+	private static final Logger LOGGER = Logger.getLogger(MetadataSource.class
+			.getCanonicalName());
+
+	private final MetadataUpdateThread owner;
+	private final String url;
+	private final MetadataStore store;
+	private final MetadataStreamParser parser = new MetadataStreamParser();
+	private final CacheValidator validator = new CacheValidator();
+	private volatile ParsedMetadata metadata;
+
+	/**
+	 * @param owner
+	 *            the {@link MetadataUpdateThread} to notify of changes
+	 * @param url
+	 *            URL of Shibboleth XML metadata
+	 * @param snapshotDir
+	 *            directory for metadata snapshots; the snapshot of this source
+	 *            is named after the hash of its URL
+	 */
+	public MetadataSource(final MetadataUpdateThread owner, final String url,
+			final File snapshotDir) {
+		super("metadata updater: " + url);
+		this.owner = owner;
+		this.url = url;
+		store = new MetadataStore(new File(snapshotDir,
+				DigestUtils.shaHex(url) + ".bin"));
+	}
+
+	/**
+	 * Gets the metadata from the last successful download of this source.
+	 * 
+	 * @return the last {@link ParsedMetadata}, or <code>null</code> if this
+	 *         source has never been downloaded successfully
+	 */
+	public ParsedMetadata getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * Restores the metadata saved after the last successful download, if any.
+	 * Must be called before the thread is started.
+	 * 
+	 * @return <code>true</code> if a snapshot was restored
+	 */
+	public boolean loadSnapshot() {
+		try {
+			metadata = store.load();
+		} catch (final IOException e) {
+			// not a problem; metadata will simply become available once the
+			// download finishes
+			LOGGER.log(Level.WARNING, "cannot read metadata snapshot for "
+					+ url, e);
+			return false;
+		}
+		if (metadata == null) {
+			LOGGER.info("no usable metadata snapshot for " + url);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		while (!interrupted()) {
+			// the validator remembers not to download it again if it hasn't
+			// changed
+			final boolean success = updateMetadata();
+
+			try {
+				if (success) {
+					// shibboleth generally updates its metadata every hour, so
+					// it doesn't make sense to update it much more frequently.
+					// rationale for 15 minutes is to not delay metadata updates
+					// by another hour (worst case).
+					Thread.sleep(MetadataUpdateThread.INTERVAL * 1000);
+				} else
+					// retry very quickly on failure. this assumes that all
+					// errors are caused by short-term problems on the metadata
+					// server, but if it's down anyway, bombarding it with
+					// requests will not do much extra harm.
+					Thread.sleep(1 * 60 * 1000);
+			} catch (final InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Downloads this source and, if it changed, has the owner merge it.
+	 * 
+	 * @return <code>false</code> if metadata download fails
+	 */
+	private boolean updateMetadata() {
+		try {
+			final ParsedMetadata metadata = HTTP.getParsed(url, parser,
+					validator);
+			if (metadata == null) {
+				LOGGER.log(Level.INFO, "metadata not modified: " + url);
+				return true;
+			}
+			if (isInterrupted())
+				// shut down while downloading. the owner may not be able to
+				// merge anymore, and has stopped waiting for this source.
+				return false;
+			LOGGER.log(Level.INFO, "downloaded " + url + "; "
+					+ metadata.getIdPs().size() + " IdPs, "
+					+ metadata.getSPs().size() + " SPs");
+			// merge() reads the new metadata from this source. if merging
+			// fails, go back to the previous metadata so that the next merge,
+			// triggered by any source, doesn't pick up a half-applied update.
+			final ParsedMetadata previous = this.metadata;
+			this.metadata = metadata;
+			try {
+				owner.merge();
+			} catch (final RuntimeException e) {
+				this.metadata = previous;
+				throw e;
+			}
+			// only skip this version from now on if it was actually merged
+			validator.commit();
+			try {
+				store.save(metadata);
+			} catch (final IOException e) {
+				// the update itself still succeeded; only the next restart
+				// will be slower
+				LOGGER.log(Level.WARNING, "cannot save metadata snapshot for "
+						+ url, e);
+			}
+			return true;
+		} catch (final Exception e) {
+			LOGGER.log(Level.WARNING, "cannot update metadata from " + url
+					+ "; keeping existing data", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Compact binary snapshot of the parsed IdP and SP descriptors. It is written
+ * after every successful metadata update and read when the servlet starts, so
+ * that the discovery is usable immediately instead of only after the first
+ * (possibly very slow) metadata download.
+ * <p>
+ * Strings are stored as length-prefixed UTF-8 rather than with
+ * {@link DataOutputStream#writeUTF(String)}, because logos embedded as
+ * {@code data:} URLs can easily exceed its 64k limit.
+ */
+class MetadataStore {
+	private static final int MAGIC = 0x6d657461;
+	private static final int VERSION = 2;
+
+	private final File file;
+
+	/**
+	 * @param file
+	 *            location of the snapshot file
+	 */
+	public MetadataStore(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Atomically replaces the snapshot with the given metadata.
+	 * 
+	 * @param metadata
+	 *            the {@link ParsedMetadata} to save
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public void save(final ParsedMetadata metadata) throws IOException {
+		final File temp = new File(file.getParentFile(), file.getName()
+				+ ".tmp");
+		temp.delete();
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(metadata.getIdPs().size());
+			for (final IdPDescriptor idp : metadata.getIdPs()) {
+				writeString(out, idp.getEntityID());
+				out.writeInt(idp.getDisplayNames().size());
+				for (final IdPDescriptor.DisplayName name : idp
+						.getDisplayNames()) {
+					writeString(out, name.getLanguage());
+					writeString(out, name.getName());
+				}
+				out.writeInt(idp.getLogos().size());
+				for (final IdPDescriptor.Logo logo : idp.getLogos()) {
+					writeString(out, logo.getWidth());
+					writeString(out, logo.getHeight());
+					writeString(out, logo.getURL());
+				}
+				writeString(out, idp.getRegistrationAuthority());
+				out.writeInt(idp.getEntityCategories().size());
+				for (final String category : idp.getEntityCategories())
+					writeString(out, category);
+			}
+			out.writeInt(metadata.getSPs().size());
+			for (final SPDescriptor sp : metadata.getSPs()) {
+				writeString(out, sp.getEntityID());
+				out.writeInt(sp.getResponseLocations().size());
+				for (final SPDescriptor.ResponseLocation location : sp
+						.getResponseLocations()) {
+					writeString(out, location.getIndex());
+					writeString(out, location.getIsDefault());
+					writeString(out, location.getLocation());
+				}
+			}
+		}
+		if (!temp.renameTo(file)) {
+			// rename doesn't overwrite on some platforms
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("cannot rename " + temp.getAbsolutePath()
+						+ " to " + file.getAbsolutePath());
+		}
+	}
+
+	private static void writeString(final DataOutputStream out,
+			final String value) throws IOException {
+		final byte[] bytes = value.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads the snapshot, memory-mapping the file. Returns <code>null</code>
+	 * if there is no snapshot or if it was written by an incompatible version.
+	 * 
+	 * @return the saved {@link ParsedMetadata}, or <code>null</code>
+	 * @throws IOException
+	 *             if the snapshot cannot be read or is corrupt
+	 */
+	public ParsedMetadata load() throws IOException {
+		if (!file.exists())
+			return null;
+
+		final ByteBuffer buffer;
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r");
+				final FileChannel channel = raf.getChannel()) {
+			// the mapping stays valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return null;
+			final ParsedMetadata metadata = new ParsedMetadata();
+			final int numIdPs = buffer.getInt();
+			for (int i = 0; i < numIdPs; i++) {
+				final IdPDescriptor idp = new IdPDescriptor(readString(buffer));
+				final int numNames = buffer.getInt();
+				for (int j = 0; j < numNames; j++)
+					idp.getDisplayNames().add(
+							new IdPDescriptor.DisplayName(readString(buffer),
+									readString(buffer)));
+				final int numLogos = buffer.getInt();
+				for (int j = 0; j < numLogos; j++)
+					idp.getLogos().add(
+							new IdPDescriptor.Logo(readString(buffer),
+									readString(buffer), readString(buffer)));
+				idp.setRegistrationAuthority(readString(buffer));
+				final int numCategories = buffer.getInt();
+				for (int j = 0; j < numCategories; j++)
+					idp.getEntityCategories().add(readString(buffer));
+				metadata.getIdPs().add(idp);
+			}
+			final int numSPs = buffer.getInt();
+			for (int i = 0; i < numSPs; i++) {
+				final SPDescriptor sp = new SPDescriptor(readString(buffer));
+				final int numLocations = buffer.getInt();
+				for (int j = 0; j < numLocations; j++)
+					sp.getResponseLocations().add(
+							new SPDescriptor.ResponseLocation(
+									readString(buffer), readString(buffer),
+									readString(buffer)));
+				metadata.getSPs().add(sp);
+			}
+			return metadata;
+		} catch (final BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("corrupt metadata snapshot "
+					+ file.getAbsolutePath(), e);
+		}
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining())
+			throw new BufferUnderflowException();
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+}
@@ -0,0 +1,312 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.ASSERTION_NS;
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.ENTITY_CATEGORY;
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.IDPDISCO_NS;
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.METADATA_ATTR_NS;
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.METADATA_NS;
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.METADATA_RPI_NS;
+import static de.uniKonstanz.shib.disco.metadata.MetadataNamespaces.METADATA_UI_NS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import de.uniKonstanz.shib.disco.util.HTTP;
+
+/**
+ * Single-pass streaming parser for Shibboleth metadata. Extracts the IdP
+ * display names, logos, registration authorities and entity categories, and
+ * the SP discovery response locations, directly
+ * from the input stream without ever building a DOM tree. Memory consumption
+ * is thus proportional to the (small) extracted data, not to the size of the
+ * metadata document, which for large aggregates can be 80+ MB.
+ * <p>
+ * Only top-level {@code <md:EntityDescriptor>}s, ie. direct children of the
+ * root {@code <md:EntitiesDescriptor>}, are considered. Everything not
+ * explicitly extracted, in particular signatures and certificates, is skipped
+ * without being looked at.
+ */
+class MetadataStreamParser implements HTTP.EntityParser<ParsedMetadata> {
+	/**
+	 * Value of the {@code Binding} attribute of usable
+	 * {@code <idpdisco:DiscoveryResponse>}s. Happens to be the same as the
+	 * namespace URI.
+	 */
+	private static final String DISCO_BINDING = IDPDISCO_NS;
+
+	@Override
+	public ParsedMetadata parse(final InputStream in) throws IOException {
+		// the factory isn't guaranteed to be thread safe, and parsing happens
+		// every 15 minutes at most, so just create a new one every time
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		// metadata has no business declaring a DTD, and resolving external
+		// entities would be a security problem
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				false);
+
+		try {
+			final XMLStreamReader xml = factory.createXMLStreamReader(in);
+			try {
+				return parseDocument(xml);
+			} finally {
+				xml.close();
+			}
+		} catch (final XMLStreamException e) {
+			throw new IOException("cannot parse metadata: " + e.getMessage(),
+					e);
+		}
+	}
+
+	private static ParsedMetadata parseDocument(final XMLStreamReader xml)
+			throws XMLStreamException {
+		xml.nextTag();
+		if (!isElement(xml, METADATA_NS, "EntitiesDescriptor"))
+			throw new XMLStreamException("invalid root element "
+					+ xml.getName());
+
+		final ParsedMetadata metadata = new ParsedMetadata();
+		while (nextChild(xml))
+			if (isElement(xml, METADATA_NS, "EntityDescriptor"))
+				parseEntity(xml, metadata);
+			else
+				skipElement(xml);
+		return metadata;
+	}
+
+	private static void parseEntity(final XMLStreamReader xml,
+			final ParsedMetadata metadata) throws XMLStreamException {
+		final String entityID = getAttribute(xml, null, "entityID");
+		IdPDescriptor idp = null;
+		SPDescriptor sp = null;
+		// entity-level extensions come before the role descriptors, so they
+		// have to be kept until we know whether the entity is an IdP
+		String registrationAuthority = "";
+		final List<String> categories = new ArrayList<String>();
+		while (nextChild(xml))
+			if (isElement(xml, METADATA_NS, "Extensions"))
+				registrationAuthority = parseEntityExtensions(xml,
+						registrationAuthority, categories);
+			else if (isElement(xml, METADATA_NS, "IDPSSODescriptor")) {
+				if (idp == null) {
+					idp = new IdPDescriptor(entityID);
+					metadata.getIdPs().add(idp);
+				}
+				parseIdP(xml, idp);
+			} else if (isElement(xml, METADATA_NS, "SPSSODescriptor")) {
+				if (sp == null) {
+					sp = new SPDescriptor(entityID);
+					metadata.getSPs().add(sp);
+				}
+				parseSP(xml, sp);
+			} else
+				skipElement(xml);
+
+		if (idp != null) {
+			idp.setRegistrationAuthority(registrationAuthority);
+			idp.getEntityCategories().addAll(categories);
+		}
+	}
+
+	/**
+	 * Collects the registration authority from
+	 * {@code md:Extensions/mdrpi:RegistrationInfo} and the entity categories
+	 * from {@code md:Extensions/mdattr:EntityAttributes/saml:Attribute}.
+	 * 
+	 * @param previous
+	 *            registration authority from a previous {@code md:Extensions}
+	 * @param categories
+	 *            return value; entity categories are appended to this list
+	 * @return the registration authority, or {@code previous} if there is
+	 *         none
+	 */
+	private static String parseEntityExtensions(final XMLStreamReader xml,
+			final String previous, final List<String> categories)
+			throws XMLStreamException {
+		String registrationAuthority = previous;
+		while (nextChild(xml)) {
+			if (isElement(xml, METADATA_RPI_NS, "RegistrationInfo")) {
+				registrationAuthority = getAttribute(xml, null,
+						"registrationAuthority");
+				skipElement(xml);
+				continue;
+			}
+			if (!isElement(xml, METADATA_ATTR_NS, "EntityAttributes")) {
+				skipElement(xml);
+				continue;
+			}
+
+			while (nextChild(xml)) {
+				if (!isElement(xml, ASSERTION_NS, "Attribute")
+						|| !ENTITY_CATEGORY.equals(getAttribute(xml, null,
+								"Name"))) {
+					skipElement(xml);
+					continue;
+				}
+
+				while (nextChild(xml))
+					if (isElement(xml, ASSERTION_NS, "AttributeValue"))
+						categories.add(readText(xml).trim());
+					else
+						skipElement(xml);
+			}
+		}
+		return registrationAuthority;
+	}
+
+	/**
+	 * Collects display names and logos from
+	 * {@code md:IDPSSODescriptor/md:Extensions/mdui:UIInfo}.
+	 */
+	private static void parseIdP(final XMLStreamReader xml,
+			final IdPDescriptor idp) throws XMLStreamException {
+		while (nextChild(xml)) {
+			if (!isElement(xml, METADATA_NS, "Extensions")) {
+				skipElement(xml);
+				continue;
+			}
+
+			while (nextChild(xml)) {
+				if (!isElement(xml, METADATA_UI_NS, "UIInfo")) {
+					skipElement(xml);
+					continue;
+				}
+
+				while (nextChild(xml))
+					if (isElement(xml, METADATA_UI_NS, "DisplayName")) {
+						final String lang = getAttribute(xml,
+								XMLConstants.XML_NS_URI, "lang");
+						idp.getDisplayNames().add(
+								new IdPDescriptor.DisplayName(lang,
+										readText(xml)));
+					} else if (isElement(xml, METADATA_UI_NS, "Logo")) {
+						final String width = getAttribute(xml, null, "width");
+						final String height = getAttribute(xml, null,
+								"height");
+						idp.getLogos().add(
+								new IdPDescriptor.Logo(width, height,
+										readText(xml).trim()));
+					} else
+						skipElement(xml);
+			}
+		}
+	}
+
+	/**
+	 * Collects discovery response locations from
+	 * {@code md:SPSSODescriptor/md:Extensions/idpdisco:DiscoveryResponse},
+	 * keeping only those that use the discovery protocol binding.
+	 */
+	private static void parseSP(final XMLStreamReader xml,
+			final SPDescriptor sp) throws XMLStreamException {
+		while (nextChild(xml)) {
+			if (!isElement(xml, METADATA_NS, "Extensions")) {
+				skipElement(xml);
+				continue;
+			}
+
+			while (nextChild(xml)) {
+				if (isElement(xml, IDPDISCO_NS, "DiscoveryResponse")
+						&& DISCO_BINDING.equals(getAttribute(xml, null,
+								"Binding")))
+					sp.getResponseLocations().add(
+							new SPDescriptor.ResponseLocation(getAttribute(xml,
+									null, "index"), getAttribute(xml, null,
+									"isDefault"), getAttribute(xml, null,
+									"Location")));
+				skipElement(xml);
+			}
+		}
+	}
+
+	/**
+	 * Advances to the next child element of the current element, skipping
+	 * text, comments and processing instructions.
+	 * 
+	 * @return <code>true</code> if positioned on the start of a child element,
+	 *         <code>false</code> if positioned at the end of the parent
+	 */
+	private static boolean nextChild(final XMLStreamReader xml)
+			throws XMLStreamException {
+		while (true)
+			switch (xml.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				return true;
+			case XMLStreamConstants.END_ELEMENT:
+				return false;
+			case XMLStreamConstants.END_DOCUMENT:
+				throw new XMLStreamException("unexpected end of document");
+			}
+	}
+
+	/**
+	 * Skips the current element and everything it contains. Afterwards, the
+	 * reader is positioned on its end tag.
+	 */
+	private static void skipElement(final XMLStreamReader xml)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0)
+			switch (xml.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.END_DOCUMENT:
+				throw new XMLStreamException("unexpected end of document");
+			}
+	}
+
+	/**
+	 * Reads the text content of the current element, including that of any
+	 * nested elements. Afterwards, the reader is positioned on its end tag.
+	 */
+	private static String readText(final XMLStreamReader xml)
+			throws XMLStreamException {
+		final StringBuilder buffer = new StringBuilder();
+		int depth = 1;
+		while (depth > 0)
+			switch (xml.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				buffer.append(xml.getText());
+				break;
+			case XMLStreamConstants.END_DOCUMENT:
+				throw new XMLStreamException("unexpected end of document");
+			}
+		return buffer.toString();
+	}
+
+	private static boolean isElement(final XMLStreamReader xml,
+			final String namespace, final String localName) {
+		return localName.equals(xml.getLocalName())
+				&& namespace.equals(xml.getNamespaceURI());
+	}
+
+	/** Gets an attribute value, or the empty string if it is missing. */
+	private static String getAttribute(final XMLStreamReader xml,
+			final String namespace, final String localName) {
+		final String value = xml.getAttributeValue(namespace, localName);
+		if (value == null)
+			return "";
+		return value;
+	}
+}
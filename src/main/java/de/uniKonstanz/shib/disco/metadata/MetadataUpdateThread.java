@@ -1,37 +1,48 @@
 package de.uniKonstanz.shib.disco.metadata;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamSource;
-
-import org.w3c.dom.Document;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.AtomicLongMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
 import de.uniKonstanz.shib.disco.loginlogger.LoginParams;
-import de.uniKonstanz.shib.disco.logo.LogoUpdaterThread;
-import de.uniKonstanz.shib.disco.util.HTTP;
+import de.uniKonstanz.shib.disco.logo.LogoPipeline;
 
 /**
- * Background thread that periodically downloads the DiscoFeed and updates IdP
- * metadata from it. This also initiates the asynchronous logo download running
- * in {@link LogoUpdaterThread}.
+ * Owns the metadata sources and merges them into a single
+ * {@link MetadataSnapshot}. Every source is downloaded by its own
+ * {@link MetadataSource} thread; this thread just supervises them and shuts
+ * them down when it is interrupted. Also initiates the asynchronous logo
+ * download running in the {@link LogoPipeline}.
  */
 public class MetadataUpdateThread extends Thread {
 	private static final String DISCO_FEED = "DiscoFeed";
@@ -40,51 +51,120 @@ public class MetadataUpdateThread extends Thread {
 	 * fetching metadata.
 	 */
 	public static final int INTERVAL = 15 * 60;
+	/**
+	 * Interval, in seconds, at which filters are checked for upcoming expiry.
+	 * Has to be shorter than the time ahead of expiry at which
+	 * {@link IdPFilter#isExpiring()} becomes true.
+	 */
+	private static final int PREFETCH_INTERVAL = 60;
+	/**
+	 * Average delay, in milliseconds, between queueing two prefetches. Keeps
+	 * the prefetch from flooding the filter executor, and thus the SPs, when
+	 * many filters are due at once. The actual delay is randomized.
+	 */
+	private static final int PREFETCH_DELAY = 200;
+	/**
+	 * Time, in milliseconds, to wait for the metadata sources to stop on
+	 * shutdown. HTTP downloads cannot be interrupted, so a source in the
+	 * middle of downloading a large aggregate may take much longer; it is
+	 * abandoned after this time, and discards its download when it finishes.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 10 * 1000;
 	private static final Logger LOGGER = Logger
 			.getLogger(MetadataUpdateThread.class.getCanonicalName());
 
-	private final String metadataURL;
+	private final List<MetadataSource> sources;
 	private final IdPMetaParser idpParser;
 	private final SPMetaParser spParser;
+	private final ForkJoinPool pool;
+	private final LogoPipeline logos;
+	private final ThreadPoolExecutor filterExecutor;
 	private LoadingCache<String, IdPFilter> filters;
-	private Transformer trafo;
+	private final int maxFilters;
+	private volatile MetadataSnapshot snapshot = MetadataSnapshot.EMPTY;
+	private final AtomicLongMap<String> languageRequests = AtomicLongMap
+			.create();
+	private final int prewarmLanguages;
+	private final FilterRules rules;
+	private final FilterStore filterStore;
+	private volatile Set<String> discoFeeds = Collections.emptySet();
+	private final AtomicLong rejectedFilters = new AtomicLong();
 
 	/**
-	 * @param metadataURL
-	 *            URL of Shibboleth XML metadata
+	 * @param metadataURLs
+	 *            URLs of Shibboleth XML metadata. if an entity appears in
+	 *            several sources, the first source wins.
 	 * @param logoDir
 	 *            logo cache directory
+	 * @param snapshotDir
+	 *            directory for the metadata snapshots of all sources and the
+	 *            {@link FilterStore}
+	 * @param prewarmLanguages
+	 *            number of most frequently requested languages to sort
+	 *            immediately after every update
+	 * @param filterConcurrency
+	 *            maximum number of DiscoFeed downloads running at the same
+	 *            time
+	 * @param rules
+	 *            {@link FilterRules} for SPs whose filter is evaluated locally
+	 * @param maxFilters
+	 *            maximum number of cached filters, ie. of DiscoFeeds
+	 * @param maxLogoDownloads
+	 *            maximum number of logo downloads running at the same time
+	 * @param maxPaletteError
+	 *            maximum color error when writing logos as palette PNGs;
+	 *            negative to disable palettes
 	 * @throws ServletException
-	 *             if the logo cache directory cannot be created
+	 *             if the logo cache or snapshot directory cannot be created
 	 */
-	public MetadataUpdateThread(final String metadataURL, final File logoDir)
+	public MetadataUpdateThread(final List<String> metadataURLs,
+			final File logoDir, final File snapshotDir,
+			final int prewarmLanguages, final int filterConcurrency,
+			final FilterRules rules, final int maxFilters,
+			final int maxLogoDownloads, final int maxPaletteError)
 			throws ServletException {
 		super("metadata updater");
-		this.metadataURL = metadataURL;
-		idpParser = new IdPMetaParser(logoDir);
-		spParser = new SPMetaParser();
-
-		// load metadata by XSLT-transforming it, and then manually parsing the
-		// resulting temporary XML format. this is ridiculous, but massively
-		// (~20x) faster than directly running XPath queries against the
-		// original document. apparently, the Java XPath parser is just
-		// extremely slow on a DOM tree...
-		final StreamSource xslt = new StreamSource(
-				MetadataUpdateThread.class.getResourceAsStream("metadata.xslt"));
-		try {
-			trafo = TransformerFactory.newInstance().newTransformer(xslt);
-		} catch (final TransformerConfigurationException e) {
-			throw new ServletException("failed to compile XSLT", e);
-		}
+		this.prewarmLanguages = prewarmLanguages;
+		this.maxFilters = maxFilters;
+		this.rules = rules;
+		snapshotDir.mkdirs();
+		if (!snapshotDir.isDirectory())
+			throw new ServletException("cannot create "
+					+ snapshotDir.getAbsolutePath());
+		sources = new ArrayList<MetadataSource>(metadataURLs.size());
+		for (final String url : metadataURLs)
+			sources.add(new MetadataSource(this, url, snapshotDir));
+		filterStore = new FilterStore(new File(snapshotDir, "filters.bin"));
+		// dedicated pool for processing updates in parallel. the common pool
+		// is shared with everything else in the servlet container, and
+		// cannot be shut down when the servlet is unloaded.
+		pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		logos = new LogoPipeline(logoDir, maxLogoDownloads,
+				maxPaletteError);
+		idpParser = new IdPMetaParser(logos, pool);
+		spParser = new SPMetaParser(pool);
+		// bounded pool for DiscoFeed downloads. when many filters expire at
+		// the same time, the updates simply queue up in FIFO order instead of
+		// all hitting the network at once. duplicate updates of the same
+		// filter are coalesced by the IdPFilter itself.
+		filterExecutor = new ThreadPoolExecutor(filterConcurrency,
+				filterConcurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("filter update %d")
+						.setDaemon(true).build());
+		filterExecutor.allowCoreThreadTimeOut(true);
 
 		// cache filters for 4 days so they can make it over a weekend without
 		// expiring. because they handle updates themselves, this doesn't mean
 		// data will stay constant for 4 days, but that stale data will be
 		// available as a fallback for 4 days, allowing much shorter timeouts.
 		// there is at most one value per SP, and it's just a moderately sized
-		// HashSet each time; soft references are used as a fallback.
+		// HashSet each time; soft references are used as a fallback. the
+		// hard limit is just a safety net; filters are only ever created for
+		// return locations from the metadata.
 		filters = CacheBuilder.newBuilder().expireAfterAccess(4, TimeUnit.DAYS)
-				.softValues().build(new CacheLoader<String, IdPFilter>() {
+				.maximumSize(maxFilters).softValues()
+				.build(new CacheLoader<String, IdPFilter>() {
 					@Override
 					public IdPFilter load(final String url) throws SQLException {
 						return new IdPFilter(MetadataUpdateThread.this, url);
@@ -92,102 +172,324 @@ public class MetadataUpdateThread extends Thread {
 				});
 	}
 
+	/**
+	 * Restores the metadata saved after the last successful update of each
+	 * source, if any. This makes metadata available immediately after
+	 * startup, instead of only after the first download. Also restores the
+	 * filters, and starts refreshing them in the background if there is
+	 * metadata to resolve them against; otherwise they are refreshed by the
+	 * first prefetch after metadata has arrived. Must be called before the
+	 * thread is started.
+	 */
+	public void loadSnapshot() {
+		boolean restored = false;
+		for (final MetadataSource source : sources)
+			restored |= source.loadSnapshot();
+		if (restored) {
+			final MetadataSnapshot snapshot = merge();
+			LOGGER.info("restored metadata snapshot; " + snapshot.getNumIdPs()
+					+ " IdPs, " + snapshot.getNumSPs() + " SPs");
+		}
+
+		final boolean available = snapshot.isAvailable();
+		for (final IdPFilter filter : filterStore.load(this)) {
+			filters.put(filter.getURL(), filter);
+			if (available)
+				filter.refresh();
+		}
+	}
+
 	@Override
 	public void run() {
-		Date lastDownload = null;
-		while (!interrupted()) {
-			final long now = System.currentTimeMillis();
-			final boolean success = updateMetadata(lastDownload);
-
-			try {
-				if (success) {
-					// remember not to download it again...
-					lastDownload = new Date(now);
-					// shibboleth generally updates its metadata every hour, so
-					// it doesn't make sense to update it much more frequently.
-					// rationale for 15 minutes is to not delay metadata updates
-					// by another hour (worst case).
-					Thread.sleep(INTERVAL * 1000);
-				} else
-					// retry very quickly on failure. this assumes that all
-					// errors are caused by short-term problems on the metadata
-					// server, but if it's down anyway, bombarding it with
-					// requests will not do much extra harm.
-					Thread.sleep(1 * 60 * 1000);
-			} catch (final InterruptedException e) {
-				break;
+		for (final MetadataSource source : sources)
+			source.start();
+		try {
+			// the sources update themselves. this thread just keeps the
+			// filters fresh, and saves them every now and then so that a
+			// crash doesn't lose all of them.
+			long lastSave = System.currentTimeMillis();
+			while (true) {
+				Thread.sleep(PREFETCH_INTERVAL * 1000);
+				prefetchFilters();
+				if (System.currentTimeMillis() - lastSave > INTERVAL * 1000) {
+					saveFilters();
+					lastSave = System.currentTimeMillis();
+				}
 			}
+		} catch (final InterruptedException e) {
+			// shutdown requested
+		} finally {
+			// the sources must be stopped before the pool because they use it
+			// when merging. this also has to happen if this thread dies of some
+			// unexpected exception; the sources would fail on every merge
+			// otherwise.
+			for (final MetadataSource source : sources)
+				source.interrupt();
+			final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+			for (final MetadataSource source : sources)
+				try {
+					// join(0) would wait forever
+					source.join(Math.max(1,
+							deadline - System.currentTimeMillis()));
+					if (source.isAlive())
+						LOGGER.warning("abandoning " + source.getName()
+								+ " because it doesn't stop");
+				} catch (final InterruptedException e) {
+					LOGGER.log(Level.SEVERE, "metadata updater shutdown failed",
+							e);
+				}
+			saveFilters();
+			// abandon all queued filter updates; requests waiting for them
+			// simply time out and use stale data
+			filterExecutor.shutdownNow();
+			logos.shutdown();
+			pool.shutdown();
 		}
 	}
 
 	/**
-	 * Performs the metadata update.
-	 * 
-	 * @param lastModified
-	 *            timestamp of last successful metadata download
-	 * 
-	 * @return <code>false</code> if metadata download fails
+	 * Refreshes the filters of all SPs that are about to expire, or that
+	 * haven't been used yet. This way, requests essentially always find a
+	 * fresh filter and never have to wait for the DiscoFeed.
+	 * <p>
+	 * Filters are only created while the cache has room for them: if there
+	 * are more SPs than the cache holds, creating them would just evict
+	 * others, which would then be created again, and fetched again, on the
+	 * next round. Neither iterating over the cache nor checking for a key
+	 * counts as an access, so filters that are no longer used still expire.
 	 */
-	private boolean updateMetadata(final Date lastModified) {
+	private void prefetchFilters() throws InterruptedException {
+		final Set<String> urls = discoFeeds;
+		final Map<String, IdPFilter> cached = filters.asMap();
+		for (final Map.Entry<String, IdPFilter> e : cached.entrySet()) {
+			// SPs removed from the metadata are left to expire
+			final IdPFilter filter = e.getValue();
+			if (!urls.contains(e.getKey()) || !filter.isExpiring())
+				continue;
+			filter.refresh();
+			Thread.sleep(ThreadLocalRandom.current().nextInt(
+					2 * PREFETCH_DELAY));
+		}
+
+		// SPs that haven't been used yet, or whose filter has been dropped
+		for (final String url : urls) {
+			if (cached.containsKey(url))
+				continue;
+			if (filters.size() >= maxFilters)
+				break;
+			filters.getUnchecked(url).refresh();
+			Thread.sleep(ThreadLocalRandom.current().nextInt(
+					2 * PREFETCH_DELAY));
+		}
+	}
+
+	private void saveFilters() {
+		final long rejected = rejectedFilters.getAndSet(0);
+		if (rejected > 0)
+			LOGGER.info("rejected " + rejected
+					+ " filter requests for invalid return locations");
 		try {
-			final Document doc = HTTP.getXML(metadataURL, trafo, lastModified);
-			if (doc == null) {
-				LOGGER.log(Level.INFO, "metadata not modified");
-				return true;
-			}
-			idpParser.update(doc);
-			spParser.update(doc);
-			LOGGER.log(Level.INFO,
-					"metadata update successful; " + idpParser.getNumIdPs()
-							+ " IdPs, " + spParser.getNumSPs() + " SPs");
-			return true;
-		} catch (final Exception e) {
-			LOGGER.log(Level.WARNING,
-					"cannot update metadata; keeping existing data", e);
-			return false;
+			filterStore.save(filters.asMap().values());
+		} catch (final IOException e) {
+			// not serious; the next restart will just be a bit slower
+			LOGGER.log(Level.WARNING, "cannot save filter snapshot", e);
+		} catch (final RuntimeException e) {
+			// a bug, but not one worth killing the update thread for
+			LOGGER.log(Level.SEVERE, "cannot save filter snapshot", e);
 		}
 	}
 
-	public IdPMeta getMetadata(final String entityID) {
-		return idpParser.getMetadata(entityID);
+	/**
+	 * Terminates the background thread and all metadata sources, waiting
+	 * until they have actually shut down, but abandoning sources that are
+	 * stuck in a download after {@link #SHUTDOWN_TIMEOUT}.
+	 */
+	public void shutdown() {
+		interrupt();
+		if (!isAlive())
+			return;
+		try {
+			// the sources are given SHUTDOWN_TIMEOUT; the rest is for saving
+			// the filters
+			join(2 * SHUTDOWN_TIMEOUT);
+			if (isAlive())
+				LOGGER.warning("metadata updater didn't stop; abandoning it");
+		} catch (final InterruptedException e) {
+			LOGGER.log(Level.SEVERE, "metadata updater shutdown failed", e);
+		}
 	}
 
-	public void addMetadata(final Collection<IdPMeta> list,
-			final Collection<String> entities) {
-		idpParser.addMetadata(list, entities);
+	/**
+	 * Queues an update of an {@link IdPFilter}.
+	 * 
+	 * @param filter
+	 *            the {@link IdPFilter} to update
+	 * @return the {@link Future} of the update
+	 * @throws RejectedExecutionException
+	 *             if the servlet is shutting down
+	 */
+	Future<?> submitFilterUpdate(final IdPFilter filter) {
+		return filterExecutor.submit(filter);
 	}
 
-	public List<IdPMeta> getAllMetadata(final Iterable<String> languages) {
-		return idpParser.getAllMetadata(languages);
+	/**
+	 * Merges the latest metadata of all sources and publishes the result.
+	 * Called by the {@link MetadataSource}s whenever one of them changes;
+	 * synchronized because the parsers keep state between updates.
+	 * 
+	 * @return the new {@link MetadataSnapshot}
+	 */
+	synchronized MetadataSnapshot merge() {
+		final ParsedMetadata merged = new ParsedMetadata();
+		final Set<String> idps = new HashSet<String>();
+		final Set<String> sps = new HashSet<String>();
+		for (final MetadataSource source : sources) {
+			final ParsedMetadata metadata = source.getMetadata();
+			// a source that has never been downloaded successfully simply
+			// doesn't contribute anything yet
+			if (metadata == null)
+				continue;
+			for (final IdPDescriptor idp : metadata.getIdPs())
+				if (idps.add(idp.getEntityID()))
+					merged.getIdPs().add(idp);
+			for (final SPDescriptor sp : metadata.getSPs())
+				if (sps.add(sp.getEntityID()))
+					merged.getSPs().add(sp);
+		}
+		final MetadataSnapshot snapshot = update(merged);
+		LOGGER.log(Level.INFO, "merged " + sources.size()
+				+ " metadata sources; " + snapshot.getNumIdPs() + " IdPs, "
+				+ snapshot.getNumSPs() + " SPs");
+		return snapshot;
 	}
 
-	public boolean isValidResponseLocation(final String entityID) {
-		return spParser.isValidResponseLocation(entityID);
+	/**
+	 * Updates IdPs and SPs, and atomically publishes the result as a new
+	 * {@link MetadataSnapshot}. Only ever called from {@link #merge()}.
+	 */
+	private MetadataSnapshot update(final ParsedMetadata metadata) {
+		// the statistics cover the entire lifetime of the snapshot that is
+		// about to be replaced
+		LOGGER.fine("sorted lists of outgoing generation "
+				+ snapshot.getGeneration() + ": "
+				+ snapshot.getSortedIdPs().getStats());
+		idpParser.update(metadata.getIdPs());
+		spParser.update(metadata.getSPs());
+		final MetadataSnapshot next = new MetadataSnapshot(
+				snapshot.getGeneration() + 1, idpParser.getIdPs(),
+				idpParser.getSortedIdPs(), spParser.getSPs(),
+				metadata.getIdPs(), languageRequests);
+
+		// sort the default language and the most popular ones before
+		// publishing the snapshot, so that requests don't have to wait for it.
+		// everything else is sorted on demand.
+		final List<String> prewarm = new ArrayList<String>();
+		prewarm.add(AbstractShibbolethServlet.DEFAULT_LANGUAGE);
+		prewarm.addAll(getPopularLanguages(prewarmLanguages));
+		next.getSortedIdPs().prewarm(prewarm, pool);
+		snapshot = next;
+		discoFeeds = getDiscoFeeds(spParser.getSPs().values());
+		return next;
 	}
 
-	public boolean isValidResponseLocation(final String entityID,
-			final String url) {
-		return spParser.isValidResponseLocation(entityID, url);
+	/**
+	 * Derives the DiscoFeed URLs of all SPs that don't have local
+	 * {@link FilterRules}, for prefetching.
+	 */
+	private Set<String> getDiscoFeeds(final Collection<SPMeta> sps) {
+		final Set<String> urls = new HashSet<String>();
+		for (final SPMeta sp : sps)
+			if (rules.get(sp.getEntityID()) == null)
+				for (final String location : sp.getReturnLocations()) {
+					final String url = getDiscoFeed(location);
+					if (url != null)
+						urls.add(url);
+				}
+		return urls;
 	}
 
-	public String getDefaultResponseLocation(final String entityID) {
-		return spParser.getDefaultResponseLocation(entityID);
+	/**
+	 * Gets the URL of the DiscoFeed belonging to a discovery response
+	 * location. The Shibboleth SP serves it next to its login handler.
+	 * 
+	 * @return the DiscoFeed URL, or <code>null</code> if the response
+	 *         location is not a valid URL
+	 */
+	private static String getDiscoFeed(final String returnLocation) {
+		try {
+			return new URL(new URL(returnLocation), DISCO_FEED)
+					.toExternalForm();
+		} catch (final MalformedURLException e) {
+			LOGGER.log(Level.WARNING, "illegal return URL " + returnLocation,
+					e);
+			return null;
+		}
 	}
 
+	/** Gets the most frequently requested languages, most popular first. */
+	private List<String> getPopularLanguages(final int limit) {
+		final List<Map.Entry<String, Long>> counts = new ArrayList<Map.Entry<String, Long>>(
+				languageRequests.asMap().entrySet());
+		Collections.sort(counts, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(final Map.Entry<String, Long> a,
+					final Map.Entry<String, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+		final List<String> languages = new ArrayList<String>();
+		for (final Map.Entry<String, Long> e : counts.subList(0,
+				Math.min(limit, counts.size())))
+			languages.add(e.getKey());
+		return languages;
+	}
+
+	/**
+	 * Gets the current metadata. Callers should get the snapshot once and
+	 * then use it for the entire request, so that they see a consistent view
+	 * of the metadata. Never returns <code>null</code>; before metadata is
+	 * available, this returns an empty snapshot.
+	 * 
+	 * @return the current {@link MetadataSnapshot}
+	 */
+	public MetadataSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Gets the IdPs accepted by the SP. If there are local {@link FilterRules}
+	 * for the SP, these are evaluated against the metadata; otherwise the
+	 * SP's DiscoFeed is used.
+	 * 
+	 * @param params
+	 *            the {@link LoginParams} identifying the SP
+	 * @return the accepted IdPs, or <code>null</code> to show all IdPs
+	 */
 	public Collection<IdPMeta> getFilter(final LoginParams params) {
+		final FilterPolicy policy = rules.get(params.getSPEntityID());
+		if (policy != null) {
+			if (policy.isAcceptAll())
+				return null;
+			// evaluate against the request's snapshot, if it has one, so
+			// that the filter is consistent with the list being filtered
+			final MetadataSnapshot meta = params.getMetadata();
+			return (meta != null ? meta : snapshot).resolvePolicy(policy);
+		}
+
 		final String ret = params.getReturnLocation();
 		if (ret == null)
 			return null;
-
-		final URL url;
-		try {
-			url = new URL(new URL(ret), DISCO_FEED);
-		} catch (final MalformedURLException e) {
-			LOGGER.log(Level.WARNING, "illegal return URL " + ret, e);
+		if (params.getMetadata() == null || !params.isValidReturnLocation()) {
+			// never fetch anything for a URL that doesn't come from the
+			// metadata. otherwise, anyone could make us cache an unlimited
+			// number of filters and send requests to arbitrary URLs.
+			rejectedFilters.incrementAndGet();
 			return null;
 		}
 
-		final String filter = url.toExternalForm();
+		final String filter = getDiscoFeed(ret);
+		if (filter == null)
+			return null;
 		try {
 			return filters.get(filter).getIdPs();
 		} catch (final ExecutionException e) {
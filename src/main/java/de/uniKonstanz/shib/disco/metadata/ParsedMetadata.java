@@ -0,0 +1,21 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of parsing a metadata document with {@link MetadataStreamParser}:
+ * the raw descriptors of all IdPs and SPs it declares.
+ */
+class ParsedMetadata {
+	private final List<IdPDescriptor> idps = new ArrayList<IdPDescriptor>();
+	private final List<SPDescriptor> sps = new ArrayList<SPDescriptor>();
+
+	public List<IdPDescriptor> getIdPs() {
+		return idps;
+	}
+
+	public List<SPDescriptor> getSPs() {
+		return sps;
+	}
+}
@@ -0,0 +1,85 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Raw metadata for a single SP, as extracted from the metadata XML. Contains
+ * only the {@code <idpdisco:DiscoveryResponse>} locations using the discovery
+ * protocol binding; validation is left to {@link SPMetaParser}.
+ */
+class SPDescriptor {
+	private final String entityID;
+	private final List<ResponseLocation> locations = new ArrayList<ResponseLocation>();
+
+	public SPDescriptor(final String entityID) {
+		this.entityID = entityID;
+	}
+
+	public String getEntityID() {
+		return entityID;
+	}
+
+	/** @return all declared discovery response locations, in document order */
+	public List<ResponseLocation> getResponseLocations() {
+		return locations;
+	}
+
+	/**
+	 * Computes a hash over all content of the descriptor. If the hash is
+	 * unchanged between two metadata updates, the SP doesn't need to be
+	 * processed again.
+	 * 
+	 * @return hash of entityID and response locations
+	 */
+	public HashCode getContentHash() {
+		// strings are length-prefixed so that different sequences of strings
+		// cannot produce the same input to the hash function
+		final Hasher hasher = Hashing.sha1().newHasher();
+		hash(hasher, entityID);
+		hasher.putInt(locations.size());
+		for (final ResponseLocation location : locations) {
+			hash(hasher, location.getIndex());
+			hash(hasher, location.getIsDefault());
+			hash(hasher, location.getLocation());
+		}
+		return hasher.hash();
+	}
+
+	private static void hash(final Hasher hasher, final String value) {
+		hasher.putInt(value.length()).putUnencodedChars(value);
+	}
+
+	/**
+	 * A {@code <idpdisco:DiscoveryResponse>}. All values are kept as unparsed
+	 * strings; none of them are ever <code>null</code>, but they may be empty.
+	 */
+	public static class ResponseLocation {
+		private final String index;
+		private final String isDefault;
+		private final String location;
+
+		public ResponseLocation(final String index, final String isDefault,
+				final String location) {
+			this.index = index;
+			this.isDefault = isDefault;
+			this.location = location;
+		}
+
+		public String getIndex() {
+			return index;
+		}
+
+		public String getIsDefault() {
+			return isDefault;
+		}
+
+		public String getLocation() {
+			return location;
+		}
+	}
+}
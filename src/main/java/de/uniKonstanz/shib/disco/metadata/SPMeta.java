@@ -2,28 +2,29 @@ package de.uniKonstanz.shib.disco.metadata;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Data class to represent an SP in memory. Immutable; a changed SP is simply
+ * replaced by a new object.
+ */
 public class SPMeta extends XPMeta<SPMeta> {
-	private ArrayList<String> locations;
-	private String defaultReturn;
+	private final List<String> locations;
+	private final String defaultReturn;
 
-	public SPMeta(final String entityID) {
+	public SPMeta(final String entityID, final Collection<String> locations,
+			final String defaultReturn) {
 		super(entityID);
-	}
-
-	public void setReturnLocations(final Collection<String> locations) {
-		this.locations = new ArrayList<>(locations);
+		this.locations = Collections.unmodifiableList(new ArrayList<>(
+				locations));
+		this.defaultReturn = defaultReturn;
 	}
 
 	public List<String> getReturnLocations() {
 		return locations;
 	}
 
-	public void setDefaultReturn(final String defaultReturn) {
-		this.defaultReturn = defaultReturn;
-	}
-
 	public String getDefaultReturn() {
 		return defaultReturn;
 	}
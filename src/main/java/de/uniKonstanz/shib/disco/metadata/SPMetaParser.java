@@ -3,161 +3,208 @@ package de.uniKonstanz.shib.disco.metadata;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import com.google.common.hash.HashCode;
 
-class SPMetaParser extends XPMetaParser {
+class SPMetaParser extends XPMetaParser<SPDescriptor> {
 	private static final Logger LOGGER = Logger.getLogger(SPMetaParser.class
 			.getCanonicalName());
 
-	private HashMap<String, SPMeta> metadata;
+	private Map<String, SPMeta> metadata;
+	private Map<String, HashCode> contentHashes = new HashMap<String, HashCode>();
+	private final ForkJoinPool pool;
 
+	/**
+	 * @param pool
+	 *            {@link ForkJoinPool} for parallel processing of updates
+	 */
+	public SPMetaParser(final ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Updates the SP metadata. SPs whose descriptor is unchanged since the last
+	 * update simply keep their previous {@link SPMeta}. The SPs are processed
+	 * in parallel on the {@link ForkJoinPool}.
+	 */
 	@Override
-	public void update(final Document doc) {
-		final Element root = doc.getDocumentElement();
-		if (!root.getTagName().equals("Metadata"))
-			throw new IllegalArgumentException("invalid root tag "
-					+ root.getTagName());
+	public void update(final Collection<SPDescriptor> descriptors) {
+		// entityIDs should be unique, but if they aren't, the last one wins.
+		// every SPMeta must be handled by exactly one task.
+		final LinkedHashMap<String, SPDescriptor> unique = new LinkedHashMap<String, SPDescriptor>();
+		for (final SPDescriptor sp : descriptors)
+			unique.put(sp.getEntityID(), sp);
+		final SPDescriptor[] sps = unique.values().toArray(
+				new SPDescriptor[unique.size()]);
+
+		final SPMeta[] metas = new SPMeta[sps.length];
+		final HashCode[] hashes = new HashCode[sps.length];
+		final int unchanged = pool.invoke(new UpdateTask(metadata, sps, metas,
+				hashes, 0, sps.length));
 
 		final HashMap<String, SPMeta> map = new HashMap<String, SPMeta>();
-		for (final Element node : getChildren(root, "SP")) {
-			// collect all DiscoveryResponse URLs and order them as specified in
-			// the metadata.
-			final List<String> responses = new ArrayList<String>();
-			int bestIndex = Integer.MAX_VALUE;
-			boolean bestDefault = false;
-			String defaultLocation = null;
-			for (final Element disco : getChildren(node, "ReponseLocation")) {
-				// check that location is a valid URL without any query string
-				final String location = disco.getTextContent();
-				try {
-					final URL url = new URL(location);
-					if (url.getQuery() != null) {
-						LOGGER.log(Level.INFO, "ignoring location '" + location
-								+ "' due to query string");
-						continue;
-					}
-				} catch (final MalformedURLException e) {
-					LOGGER.log(Level.INFO, "ignoring invalid location '"
-							+ location + "'", e);
-					continue;
-				}
+		final HashMap<String, HashCode> hashMap = new HashMap<String, HashCode>();
+		for (int i = 0; i < sps.length; i++) {
+			hashMap.put(sps[i].getEntityID(), hashes[i]);
+			if (metas[i] != null)
+				map.put(sps[i].getEntityID(), metas[i]);
+		}
+		metadata = Collections.unmodifiableMap(map);
+		contentHashes = hashMap;
+		LOGGER.info("SP update: " + (sps.length - unchanged) + " processed, "
+				+ unchanged + " unchanged");
+	}
 
-				// check index is non-negative integer (as per standard)
-				final String strIndex = disco.getAttribute("index");
-				final int index;
-				try {
-					index = Integer.parseInt(strIndex);
-				} catch (final NumberFormatException e) {
-					LOGGER.log(Level.INFO, "ignoring non-numeric index '"
-							+ strIndex + "'", e);
-					continue;
-				}
-				if (index < 0) {
-					LOGGER.log(Level.INFO, "negative index " + index + " for "
-							+ location);
-					continue;
-				}
+	/**
+	 * Per-SP processing. Each task handles a contiguous range of SPs,
+	 * splitting it in half until it is small enough to be worth processing in
+	 * one go. Returns the number of unchanged SPs.
+	 */
+	private final class UpdateTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		/** Number of SPs below which a task isn't split any further. */
+		private static final int THRESHOLD = 128;
+		private final Map<String, SPMeta> previous;
+		private final SPDescriptor[] sps;
+		private final SPMeta[] metas;
+		private final HashCode[] hashes;
+		private final int start;
+		private final int end;
+
+		private UpdateTask(final Map<String, SPMeta> previous,
+				final SPDescriptor[] sps, final SPMeta[] metas,
+				final HashCode[] hashes, final int start, final int end) {
+			this.previous = previous;
+			this.sps = sps;
+			this.metas = metas;
+			this.hashes = hashes;
+			this.start = start;
+			this.end = end;
+		}
 
-				// good response location
-				responses.add(location);
-
-				// determine default response location. this picks the
-				// lowest-index entry marked as default. if no entry is
-				// marked as default, this just picks the lowest-index
-				// entry.
-				// in most cases, there is exactly one entry, which isn't
-				// marked as default. so while there is no official default, the
-				// response location is obvious. the rule below allows omitting
-				// the response location for these SPs as well.
-				final boolean isDefault = disco.getAttribute("isDefault")
-						.equalsIgnoreCase("true");
-				if (isDefault || !bestDefault)
-					if (index < bestIndex) {
-						bestIndex = index;
-						bestDefault = isDefault;
-						defaultLocation = location;
-					}
+		@Override
+		protected Integer compute() {
+			if (end - start > THRESHOLD) {
+				final int middle = (start + end) >>> 1;
+				final UpdateTask second = new UpdateTask(previous, sps, metas,
+						hashes, middle, end);
+				second.fork();
+				final int first = new UpdateTask(previous, sps, metas, hashes,
+						start, middle).compute();
+				return first + second.join();
 			}
 
-			// completely ignores SPs that have no discovery reponses. the
-			// discovery refuses to redirect to anything not explicitly
-			// whitelisted, so those SPs cannot be used anyway.
-			if (!responses.isEmpty()) {
-				final String entityID = node.getAttribute("entityID");
-				// reuse existing metadata object if possible
-				final SPMeta meta;
-				if (metadata == null || !metadata.containsKey(entityID))
-					meta = new SPMeta(entityID);
-				else
-					meta = metadata.get(entityID);
-				map.put(entityID, meta);
-
-				// update values
-				meta.setReturnLocations(responses);
-				meta.setDefaultReturn(defaultLocation);
+			int unchanged = 0;
+			for (int i = start; i < end; i++) {
+				final String entityID = sps[i].getEntityID();
+				hashes[i] = sps[i].getContentHash();
+				if (previous != null
+						&& hashes[i].equals(contentHashes.get(entityID))) {
+					// SPs without usable response locations never made it
+					// into the previous map, and still don't have any.
+					metas[i] = previous.get(entityID);
+					unchanged++;
+				} else
+					metas[i] = update(sps[i]);
 			}
+			return unchanged;
 		}
-		metadata = map;
-	}
-
-	public boolean isValidResponseLocation(final String entityID) {
-		final HashMap<String, SPMeta> map = metadata;
-		if (map == null)
-			return false;
-		return map.containsKey(entityID);
 	}
 
-	public boolean isValidResponseLocation(final String entityID,
-			final String url) {
-		final HashMap<String, SPMeta> map = metadata;
-		if (map == null)
-			return false;
-		if (!map.containsKey(entityID))
-			return false;
-
-		// check that the URL matches one of the acceptable response locations,
-		// ignoring the query string in the URL.
-		final List<String> list = map.get(entityID).getReturnLocations();
-		for (final String i : list) {
-			if (matches(url, i))
-				return true;
-		}
-		return false;
-	}
-
-	private boolean matches(final String url, final String pattern) {
-		// URL must start with the pattern ...
-		if (!url.startsWith(pattern))
-			return false;
+	/**
+	 * Processes a single SP.
+	 * 
+	 * @param sp
+	 *            the {@link SPDescriptor} to process
+	 * @return a new {@link SPMeta}, or <code>null</code> if the SP has no
+	 *         usable discovery response locations
+	 */
+	private static SPMeta update(final SPDescriptor sp) {
+		// collect all DiscoveryResponse URLs and order them as specified in
+		// the metadata.
+		final List<String> responses = new ArrayList<String>();
+		int bestIndex = Integer.MAX_VALUE;
+		boolean bestDefault = false;
+		String defaultLocation = null;
+		for (final SPDescriptor.ResponseLocation disco : sp
+				.getResponseLocations()) {
+			// check that location is a valid URL without any query string
+			final String location = disco.getLocation();
+			try {
+				final URL url = new URL(location);
+				if (url.getQuery() != null) {
+					LOGGER.log(Level.INFO, "ignoring location '" + location
+							+ "' due to query string");
+					continue;
+				}
+			} catch (final MalformedURLException e) {
+				LOGGER.log(Level.INFO, "ignoring invalid location '"
+						+ location + "'", e);
+				continue;
+			}
 
-		// ... and be followed by either nothing or a query string
-		if (url.length() == pattern.length())
-			return true;
-		if (url.charAt(pattern.length()) == '?')
-			return true;
+			// check index is non-negative integer (as per standard)
+			final String strIndex = disco.getIndex();
+			final int index;
+			try {
+				index = Integer.parseInt(strIndex);
+			} catch (final NumberFormatException e) {
+				LOGGER.log(Level.INFO, "ignoring non-numeric index '"
+						+ strIndex + "'", e);
+				continue;
+			}
+			if (index < 0) {
+				LOGGER.log(Level.INFO, "negative index " + index + " for "
+						+ location);
+				continue;
+			}
 
-		// everything else is not a valid match
-		return false;
-	}
+			// good response location
+			responses.add(location);
+
+			// determine default response location. this picks the
+			// lowest-index entry marked as default. if no entry is
+			// marked as default, this just picks the lowest-index
+			// entry.
+			// in most cases, there is exactly one entry, which isn't
+			// marked as default. so while there is no official default, the
+			// response location is obvious. the rule below allows omitting
+			// the response location for these SPs as well.
+			final boolean isDefault = disco.getIsDefault()
+					.equalsIgnoreCase("true");
+			if (isDefault || !bestDefault)
+				if (index < bestIndex) {
+					bestIndex = index;
+					bestDefault = isDefault;
+					defaultLocation = location;
+				}
+		}
 
-	public String getDefaultResponseLocation(final String entityID) {
-		final HashMap<String, SPMeta> map = metadata;
-		if (map == null)
-			return null;
-		if (!map.containsKey(entityID))
+		// completely ignores SPs that have no discovery reponses. the
+		// discovery refuses to redirect to anything not explicitly
+		// whitelisted, so those SPs cannot be used anyway.
+		if (responses.isEmpty())
 			return null;
-		return map.get(entityID).getDefaultReturn();
+		return new SPMeta(sp.getEntityID(), responses, defaultLocation);
 	}
 
-	public int getNumSPs() {
-		final Map<String, SPMeta> meta = metadata;
-		return meta != null ? meta.size() : 0;
+	/**
+	 * Gets the SPs from the last update. The map is never modified again.
+	 * 
+	 * @return map of entityID to {@link SPMeta}, or <code>null</code> before
+	 *         the first update
+	 */
+	Map<String, SPMeta> getSPs() {
+		return metadata;
 	}
 }
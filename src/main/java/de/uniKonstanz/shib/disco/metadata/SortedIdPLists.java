@@ -0,0 +1,159 @@
+package de.uniKonstanz.shib.disco.metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.primitives.UnsignedBytes;
+
+import de.uniKonstanz.shib.disco.AbstractShibbolethServlet;
+
+/**
+ * The list of all IdPs of a {@link MetadataSnapshot}, sorted by display name
+ * for each language. Lists are only sorted when they are first requested;
+ * most of the languages that appear in the metadata are never actually
+ * requested by any client. The cache guarantees that concurrent requests for
+ * the same language sort the list only once.
+ */
+class SortedIdPLists {
+	/**
+	 * Maximum number of sorted lists kept per snapshot. Each list is an array
+	 * of references to all IdPs; rarely used ones are simply sorted again.
+	 */
+	private static final int MAX_LISTS = 16;
+
+	private final Collection<IdPMeta> idps;
+	private final Set<String> languages;
+	private final LoadingCache<String, List<IdPMeta>> lists;
+
+	/**
+	 * @param idps
+	 *            all IdPs; must not be modified afterwards
+	 * @param languages
+	 *            all languages that IdPs have display names in
+	 */
+	public SortedIdPLists(final Collection<IdPMeta> idps,
+			final Set<String> languages) {
+		this.idps = idps;
+		this.languages = languages;
+		lists = CacheBuilder.newBuilder().maximumSize(MAX_LISTS)
+				.recordStats()
+				.build(new CacheLoader<String, List<IdPMeta>>() {
+					@Override
+					public List<IdPMeta> load(final String lang) {
+						return sort(lang);
+					}
+				});
+	}
+
+	/**
+	 * Checks whether a language has its own sorted list. For all other
+	 * languages, the list in the
+	 * {@link AbstractShibbolethServlet#DEFAULT_LANGUAGE} should be used.
+	 * 
+	 * @param lang
+	 *            the language to check
+	 * @return <code>true</code> if there are display names in that language
+	 */
+	public boolean hasLanguage(final String lang) {
+		return languages.contains(lang)
+				|| AbstractShibbolethServlet.DEFAULT_LANGUAGE.equals(lang);
+	}
+
+	/**
+	 * Gets the list sorted for a language, sorting it if necessary.
+	 * 
+	 * @param lang
+	 *            a language for which {@link #hasLanguage(String)} is true
+	 * @return sorted, unmodifiable list of all IdPs
+	 */
+	public List<IdPMeta> get(final String lang) {
+		return lists.getUnchecked(lang);
+	}
+
+	/**
+	 * Takes over all lists already sorted in a previous snapshot. Only valid
+	 * if the IdPs and their display names are unchanged.
+	 * 
+	 * @param previous
+	 *            the lists of the previous snapshot
+	 */
+	public void copyFrom(final SortedIdPLists previous) {
+		lists.putAll(previous.lists.asMap());
+	}
+
+	/**
+	 * Sorts the lists for the given languages in parallel, so that the first
+	 * requests don't have to wait for it.
+	 * 
+	 * @param langs
+	 *            languages to sort for; languages without their own list are
+	 *            ignored
+	 * @param pool
+	 *            {@link ForkJoinPool} to sort in
+	 */
+	public void prewarm(final Collection<String> langs, final ForkJoinPool pool) {
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (final String lang : langs)
+			if (hasLanguage(lang))
+				tasks.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						SortedIdPLists.this.get(lang);
+					}
+				});
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/** @return hit, load and eviction statistics for the lists */
+	public CacheStats getStats() {
+		return lists.stats();
+	}
+
+	private List<IdPMeta> sort(final String lang) {
+		final List<IdPMeta> list = new ArrayList<IdPMeta>(idps);
+		Collections.sort(list, new IdPCompatator(lang));
+		return Collections.unmodifiableList(list);
+	}
+
+	private static final class IdPCompatator implements Comparator<IdPMeta> {
+		private static final Comparator<byte[]> KEY_COMPARATOR = UnsignedBytes
+				.lexicographicalComparator();
+		private final String lang;
+
+		private IdPCompatator(final String lang) {
+			this.lang = lang;
+		}
+
+		@Override
+		public int compare(final IdPMeta a, final IdPMeta b) {
+			// sort by display name in target language, case
+			// insensitively. the collation keys are cached in the IdPMeta, so
+			// this is just a byte array comparison.
+			final int deltaName = KEY_COMPARATOR.compare(
+					a.getCollationKey(lang), b.getCollationKey(lang));
+			if (deltaName != 0)
+				return deltaName;
+			// make sure two different IdPs are never considered equal.
+			return a.compareTo(b);
+		}
+	}
+}
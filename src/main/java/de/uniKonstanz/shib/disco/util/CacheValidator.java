@@ -0,0 +1,96 @@
+package de.uniKonstanz.shib.disco.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+/**
+ * Remembers the cache validators ({@code ETag} and {@code Last-Modified}) that
+ * the server sent for a resource, and sends them back as
+ * {@code If-None-Match} and {@code If-Modified-Since} on the next request.
+ * The server's own {@code Last-Modified} value is sent verbatim, so that the
+ * comparison doesn't depend on the local clock.
+ * <p>
+ * {@link HTTP} only records the validators of a new response as pending. The
+ * caller has to {@link #commit()} them once it has processed the response
+ * successfully, so that a failed download, or a failure to apply the
+ * downloaded data, doesn't suppress the next attempt with a
+ * {@code 304 Not Modified}.
+ */
+public class CacheValidator {
+	private String etag;
+	private String lastModified;
+	private boolean pending;
+	private String pendingETag;
+	private String pendingLastModified;
+
+	/** Creates an empty validator, ie. the first request is unconditional. */
+	public CacheValidator() {
+	}
+
+	/**
+	 * Creates a validator from previously saved values.
+	 * 
+	 * @param etag
+	 *            the {@code ETag}, or <code>null</code> if unknown
+	 * @param lastModified
+	 *            the {@code Last-Modified} value, or <code>null</code> if
+	 *            unknown
+	 */
+	public CacheValidator(final String etag, final String lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/** @return the last {@code ETag}, or <code>null</code> */
+	public synchronized String getETag() {
+		return etag;
+	}
+
+	/** @return the last {@code Last-Modified} value, or <code>null</code> */
+	public synchronized String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Adds the conditional headers to a request. Discards the validators of
+	 * any previous response that was never committed.
+	 */
+	synchronized void addHeaders(final HttpRequest req) {
+		pending = false;
+		if (etag != null)
+			req.setHeader("If-None-Match", etag);
+		if (lastModified != null)
+			req.setHeader("If-Modified-Since", lastModified);
+	}
+
+	/**
+	 * Remembers the validators sent in a response, to be used once the
+	 * response has been processed and the caller calls {@link #commit()}.
+	 */
+	synchronized void update(final HttpResponse resp) {
+		pendingETag = getValue(resp.getFirstHeader("ETag"));
+		pendingLastModified = getValue(resp.getFirstHeader("Last-Modified"));
+		pending = true;
+	}
+
+	/**
+	 * Starts using the validators of the last response, once its contents
+	 * have been applied successfully. Does nothing if the last request
+	 * returned {@code 304 Not Modified}.
+	 */
+	public synchronized void commit() {
+		if (!pending)
+			return;
+		etag = pendingETag;
+		lastModified = pendingLastModified;
+		pending = false;
+	}
+
+	private static String getValue(final Header header) {
+		if (header == null || header.getValue() == null
+				|| header.getValue().trim().isEmpty())
+			return null;
+		return header.getValue();
+	}
+}
@@ -2,44 +2,52 @@ package de.uniKonstanz.shib.disco.util;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URLConnection;
-import java.nio.charset.Charset;
-import java.util.Date;
 
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.stream.StreamSource;
-
-import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.LaxRedirectStrategy;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
-import org.w3c.dom.Document;
 
 /**
  * Wrapper around {@link HttpClient}, with sensible timeouts for every
  * operation. Unlike {@link URLConnection}, this cannot hang forever.
+ * <p>
+ * All requests can be made conditional by passing a {@link CacheValidator},
+ * and all of them accept gzip / deflate content encoding, which is decoded
+ * transparently.
  */
 public class HTTP {
 	/** Time until the request has to be completed: 1 minute. */
 	private static final long TIMEOUT = 60 * 1000;
-	private static final Charset UTF8 = Charset.forName("UTF-8");
 	private static final RequestConfig config;
 	private static final CloseableHttpClient client;
-	private static final ObjectMapper oma;
+
+	/**
+	 * Parses the body of an HTTP response while it is being downloaded.
+	 * 
+	 * @param <T>
+	 *            type of the parsed result
+	 */
+	public interface EntityParser<T> {
+		/**
+		 * Parses the response body. The stream is closed by the caller.
+		 * 
+		 * @param in
+		 *            {@link InputStream} delivering the response body
+		 * @return the parsed result
+		 * @throws IOException
+		 *             on IO errors, and if the body cannot be parsed
+		 */
+		T parse(InputStream in) throws IOException;
+	}
 
 	static {
 		config = RequestConfig.custom()
@@ -60,80 +68,55 @@ public class HTTP {
 				// happen more frequently, that's because of errors, and then
 				// they cannot be reused anyway.
 				.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE)
-				.setKeepAliveStrategy(new NoKeepAliveStrategy()).build();
-		oma = new ObjectMapper();
+				.setKeepAliveStrategy(new NoKeepAliveStrategy())
+				// note: content compression is enabled by default. the client
+				// sends Accept-Encoding: gzip,deflate and decompresses the
+				// response while reading it. metadata aggregates compress
+				// about 10x, so it must never be disabled.
+				.build();
 	}
 
 	/**
-	 * Reads JSON from a URL and parses it into a Java object. There is no limit
-	 * on the size of the JSON input.
+	 * Reads a URL and parses its contents while downloading, without ever
+	 * holding the entire response in memory. There is no limit on the size of
+	 * the input. The parser gets the raw bytes; any encoding declared at HTTP
+	 * level is ignored, so that XML parsers can use whatever encoding is
+	 * declared in the document itself.
 	 * 
 	 * @param <T>
-	 *            type of the returned Java object
+	 *            type of the parsed result
 	 * @param url
 	 *            the URL to read
-	 * @param type
-	 *            a Jackson {@link TypeReference} describing the object to
-	 *            return
-	 * @return a Java object converted from JSON
+	 * @param parser
+	 *            the {@link EntityParser} to process the response body
+	 * @param validator
+	 *            {@link CacheValidator} to make the request conditional, or
+	 *            <code>null</code> to download the file unconditionally
+	 * @return the parsed result, or <code>null</code> if it wasn't modified.
+	 *         once the result has been applied, the caller has to
+	 *         {@link CacheValidator#commit()} the validator.
 	 * @throws IOException
-	 *             on IO errors
+	 *             on IO errors, and if parsing fails
 	 */
-	public static <T> T getJSON(final String url, final TypeReference<T> type)
+	public static <T> T getParsed(final String url,
+			final EntityParser<T> parser, final CacheValidator validator)
 			throws IOException {
-		final HttpGet req = new HttpGet(url);
+		final HttpGet req = getRequest(url, validator);
 		try {
-			final HttpEntity entity = performRequest(req);
-			final InputStreamReader reader = new InputStreamReader(
-					entity.getContent(), getContentEncoding(entity));
-			return oma.readValue(reader, type);
-		} finally {
-			// make sure request can be reused
-			req.reset();
-		}
-	}
-
-	/** Encoding helper; uses declared encoding or defaults to UTF-8. */
-	private static Charset getContentEncoding(final HttpEntity entity) {
-		final Header encoding = entity.getContentEncoding();
-		if (encoding != null && encoding.getValue() != null)
-			return Charset.forName(encoding.getValue());
-		return UTF8;
-	}
-
-	/**
-	 * Reads XML from a URL and parses it into a DOM tree. There is no limit on
-	 * the size of the input.
-	 * 
-	 * @param url
-	 *            the URL to read
-	 * @param lastModified
-	 *            timestamp of last download, or <code>null</code> to download
-	 *            the file unconditionally @param trafo the {@link Transformer}
-	 *            used to convert the XML to DOM
-	 * @return an XML {@link Document} containing the parsed DOM tree, or
-	 *         <code>null</code> if it wasn't modified
-	 * @throws IOException
-	 *             on IO errors
-	 * @throws TransformerException
-	 *             if the XML transformation fails
-	 */
-	public static Document getXML(final String url, final Transformer trafo,
-			final Date lastModified) throws IOException, TransformerException {
-		final HttpGet req = getRequest(url, lastModified);
-		try {
-			final HttpEntity entity = performRequest(req);
-			if (entity == null)
+			final HttpResponse resp = performRequest(req);
+			if (resp == null)
 				return null; // not modified
 
-			// transform XML into a DOM. ignores the encoding declared at HTTP
-			// level and lets the parser use whatever encoding is declared in
-			// the document itself.
-			// transforming from a StreamSource appears to be much (>10x) faster
-			// than transforming from a DOMSource...
-			final DOMResult dom = new DOMResult();
-			trafo.transform(new StreamSource(entity.getContent()), dom);
-			return (Document) dom.getNode();
+			final T result;
+			try (final InputStream in = resp.getEntity().getContent()) {
+				result = parser.parse(in);
+			}
+			// only remember validators for documents that could actually be
+			// parsed. otherwise, a broken document would be kept forever.
+			// they only take effect once the caller commits them.
+			if (validator != null)
+				validator.update(resp);
+			return result;
 		} finally {
 			// make sure request can be reused
 			req.reset();
@@ -148,24 +131,28 @@ public class HTTP {
 	 *            the URL to read
 	 * @param maxSize
 	 *            maximum number of bytes to read
-	 * @param lastModified
-	 *            value to send in <code>If-Modified-Since</code> header to
-	 *            avoid repeatedly re-fetching files that haven't changed, or
-	 *            <code>null</code> to omit that header and unconditionally
+	 * @param validator
+	 *            {@link CacheValidator} to avoid repeatedly re-fetching files
+	 *            that haven't changed, or <code>null</code> to unconditionally
 	 *            download the file
-	 * @return all bytes from the URL, or <code>null</code> if not modified
+	 * @return all bytes from the URL, or <code>null</code> if not modified.
+	 *         once the bytes have been processed, the caller has to
+	 *         {@link CacheValidator#commit()} the validator.
 	 * @throws IOException
 	 *             if the URL returned more than {@code maxSize} bytes, isn't
 	 *             valid in the first place, and on IO errors
 	 */
 	public static byte[] getBytes(final String url, final int maxSize,
-			final Date lastModified) throws IOException {
-		final HttpGet req = getRequest(url, lastModified);
+			final CacheValidator validator) throws IOException {
+		final HttpGet req = getRequest(url, validator);
 		try {
-			final HttpEntity entity = performRequest(req);
-			if (entity == null)
+			final HttpResponse resp = performRequest(req);
+			if (resp == null)
 				return null; // not modified
-			return readBytes(entity, maxSize);
+			final byte[] bytes = readBytes(resp.getEntity(), maxSize);
+			if (validator != null)
+				validator.update(resp);
+			return bytes;
 		} finally {
 			// make sure we don't leak connections
 			req.reset();
@@ -173,25 +160,27 @@ public class HTTP {
 	}
 
 	/**
-	 * Builds an {@link HttpGet} request, optionally with an
-	 * {@code If-Modified-Since} header.
+	 * Builds an {@link HttpGet} request, optionally with conditional headers
+	 * from a {@link CacheValidator}.
 	 */
-	private static HttpGet getRequest(final String url, final Date lastModified)
-			throws IOException {
+	private static HttpGet getRequest(final String url,
+			final CacheValidator validator) throws IOException {
 		final HttpGet req;
 		try {
 			req = new HttpGet(url);
-			if (lastModified != null)
-				req.setHeader("If-Modified-Since",
-						DateUtils.formatDate(lastModified));
+			if (validator != null)
+				validator.addHeaders(req);
 		} catch (final IllegalArgumentException e) {
 			throw new IOException("URL not valid", e);
 		}
 		return req;
 	}
 
-	/** Request helper; throws {@link IOException} on non-200 response. */
-	private static HttpEntity performRequest(final HttpGet req)
+	/**
+	 * Request helper; throws {@link IOException} on non-200 response. Returns
+	 * <code>null</code> for 304 Not Modified.
+	 */
+	private static HttpResponse performRequest(final HttpGet req)
 			throws IOException {
 		// perform HTTP request
 		final HttpResponse resp = client.execute(req);
@@ -200,7 +189,9 @@ public class HTTP {
 		if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
 			throw new IOException("unexpected response: "
 					+ resp.getStatusLine());
-		return resp.getEntity();
+		if (resp.getEntity() == null)
+			throw new IOException("response without body");
+		return resp;
 	}
 
 	/**
@@ -5,3 +5,8 @@ create table loginstats(
 	created integer not null);
 create index loginstats_entityid
 	on loginstats(iphash, entityid);
+create table loginstats_topk(
+	iphash integer not null,
+	rank integer not null,
+	entityid varchar(255) not null,
+	primary key(iphash, rank));